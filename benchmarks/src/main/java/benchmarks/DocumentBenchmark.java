@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import main.Document;
+import main.Rectangle;
+
+/**
+ * Adding, removing and reordering rectangles. Adds and removes are undone straight
+ * away, so the document (and its undo stack) stays the same size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+	private Random random;
+
+	@Setup
+	public void setup() {
+		document = Documents.random(size, 1);
+		random = new Random(2);
+	}
+
+	@Benchmark
+	public Document addThenUndo() {
+		document.addRectangle(new Rectangle(0.25, 0.25, 0.1, 0.1));
+		document.getUndoStack().undo();
+		return document;
+	}
+
+	@Benchmark
+	public Document removeMiddleThenUndo() {
+		// Undoing a remove puts the rectangle back at the end.
+		document.removeRectangle(document.getRectangles().get(size / 2));
+		document.getUndoStack().undo();
+		return document;
+	}
+
+	@Benchmark
+	public Document reorder() {
+		var rectangles = document.getRectangles();
+		document.setPosition(rectangles.get(random.nextInt(size)), random.nextInt(size));
+		return document;
+	}
+}
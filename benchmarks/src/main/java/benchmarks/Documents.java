@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.util.Random;
+import main.Document;
+import main.PropertyMap;
+import main.Rectangle;
+
+/**
+ * Builds the documents the benchmarks run against.
+ */
+public class Documents {
+
+	private Documents() {}
+
+	/**
+	 * Makes a document with `size` small rectangles spread over the canvas. About one in
+	 * four is named, and one in five has properties. The undo stack is cleared, so the
+	 * document starts out the same as one that was just opened.
+	 */
+	public static Document random(int size, long seed) {
+		var random = new Random(seed);
+		var ret = new Document();
+		for (int i = 0; i < size; i++) {
+			ret.addRectangle(randomRectangle(random, i));
+		}
+		ret.getUndoStack().clear();
+		ret.setSelectedRectangle(null);
+		return ret;
+	}
+
+	public static Rectangle randomRectangle(Random random, int i) {
+		double width = random.nextDouble() * 0.05;
+		double height = random.nextDouble() * 0.05;
+		var ret = new Rectangle(random.nextDouble() * (1 - width), random.nextDouble() * (1 - height), width, height);
+		if (i % 5 == 0) {
+			ret.properties = new PropertyMap();
+			ret.properties.putNumber("layer", i % 7);
+			ret.properties.putBoolean("visible", true);
+			ret.properties.put("style", "style" + (i % 11));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return `count` points, as x and y pairs.
+	 */
+	public static double[] randomPoints(int count, long seed) {
+		var random = new Random(seed);
+		var ret = new double[count * 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = random.nextDouble();
+		}
+		return ret;
+	}
+}
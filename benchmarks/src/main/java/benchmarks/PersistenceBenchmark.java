@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import main.BinaryDocumentCodec;
+import main.Document;
+import main.DocumentCodec;
+
+/**
+ * Loading and saving whole documents. JSON goes through memory, so only the encoding is
+ * measured; the binary format is read through a file because it's memory-mapped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+	private byte[] json;
+	private Path binaryFile;
+
+	@Setup
+	public void setup() throws IOException {
+		document = Documents.random(size, 1);
+		var bytes = new ByteArrayOutputStream();
+		try (var output = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+			DocumentCodec.write(document, output);
+		}
+		json = bytes.toByteArray();
+		binaryFile = Files.createTempFile("uibuilder-benchmark", BinaryDocumentCodec.EXTENSION);
+		BinaryDocumentCodec.write(document, binaryFile);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(binaryFile);
+	}
+
+	@Benchmark
+	public Document loadJson() throws IOException {
+		try (var input = new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8)) {
+			return DocumentCodec.read(input);
+		}
+	}
+
+	@Benchmark
+	public long saveJson() throws IOException {
+		var output = new CountingWriter();
+		DocumentCodec.write(document, output);
+		return output.count;
+	}
+
+	@Benchmark
+	public Document loadBinary() throws IOException {
+		return BinaryDocumentCodec.read(binaryFile);
+	}
+
+	@Benchmark
+	public Path saveBinary() throws IOException {
+		BinaryDocumentCodec.write(document, binaryFile);
+		return binaryFile;
+	}
+
+	/**
+	 * Throws the output away, so that saving isn't measured against a growing buffer.
+	 */
+	private static class CountingWriter extends Writer {
+		long count = 0;
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			count += length;
+		}
+
+		@Override
+		public void write(String value, int offset, int length) {
+			count += length;
+		}
+
+		@Override
+		public void write(int value) {
+			count += 1;
+		}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close() {}
+	}
+}
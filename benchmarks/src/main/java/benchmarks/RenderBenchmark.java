@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import main.Document;
+import main.DocumentExporter;
+import main.ImageRenderer;
+
+/**
+ * Rendering a whole document into a 1920x1080 image, the way DocumentExporter does.
+ * Encoding the PNG isn't included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+
+	@Setup
+	public void setup() {
+		document = Documents.random(size, 1);
+	}
+
+	@Benchmark
+	public ImageRenderer render() {
+		return DocumentExporter.render(document, WIDTH, HEIGHT);
+	}
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import main.Document;
+import main.SnapEngine;
+
+/**
+ * Snapping a drag. build is what the editor pays once when a drag starts; snap is what
+ * it pays on every mouse move after that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class SnapBenchmark {
+
+	private static final int POINT_COUNT = 1024;
+	// About 6 pixels on a 1000 pixel canvas.
+	private static final double THRESHOLD = 0.006;
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+	private SnapEngine engine;
+	private double[] points;
+	private int next;
+
+	@Setup
+	public void setup() {
+		document = Documents.random(size, 1);
+		engine = new SnapEngine(document, null, true, 0.025);
+		points = Documents.randomPoints(POINT_COUNT, 2);
+		next = 0;
+	}
+
+	@Benchmark
+	public SnapEngine build() {
+		return new SnapEngine(document, null, true, 0.025);
+	}
+
+	@Benchmark
+	public void snap(Blackhole blackhole) {
+		double x = points[next];
+		double y = points[next + 1];
+		next = (next + 2) % points.length;
+		// The same candidates a move uses: both edges and the center.
+		blackhole.consume(engine.snapX(THRESHOLD, x, x + 0.01, x + 0.02));
+		blackhole.consume(engine.snapY(THRESHOLD, y, y + 0.01, y + 0.02));
+	}
+}
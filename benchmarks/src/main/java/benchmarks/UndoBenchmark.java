@@ -0,0 +1,156 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import actions.RenameRectangleAction;
+import actions.ResizeRectangleAction;
+import main.Document;
+import main.UndoStack;
+
+/**
+ * Undo/redo churn over a history of resizes and renames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UndoBenchmark {
+
+	private static final int HISTORY = 1000;
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+	private UndoStack undoStack;
+	private Random random;
+
+	@Setup
+	public void setup() {
+		document = Documents.random(size, 1);
+		undoStack = document.getUndoStack();
+		random = new Random(2);
+		var rectangles = document.getRectangles();
+		for (int i = 0; i < HISTORY; i++) {
+			var rect = rectangles.get(random.nextInt(size));
+			if (i % 2 == 0) {
+				undoStack.push(new ResizeRectangleAction(rect, random.nextDouble() * 0.9, random.nextDouble() * 0.9, 0.05, 0.05));
+			} else {
+				undoStack.push(new RenameRectangleAction(rect, "renamed" + i));
+			}
+		}
+	}
+
+	/**
+	 * Undoes the whole history, then redoes it.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(2 * HISTORY)
+	public UndoStack undoRedoHistory() {
+		for (int i = 0; i < HISTORY; i++) {
+			undoStack.undo();
+		}
+		for (int i = 0; i < HISTORY; i++) {
+			undoStack.redo();
+		}
+		return undoStack;
+	}
+
+	/**
+	 * Pushes a new resize and undoes it, so the next push truncates it again.
+	 */
+	@Benchmark
+	public UndoStack pushResizeThenUndo() {
+		var rect = document.getRectangles().get(random.nextInt(size));
+		undoStack.push(new ResizeRectangleAction(rect, 0.5, 0.5, 0.01, 0.01));
+		undoStack.undo();
+		return undoStack;
+	}
+
+	/**
+	 * The same history as undoRedoHistory, with a budget small enough that nearly all of
+	 * it is spilled, so every step reads an action back from disk.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(2 * HISTORY)
+	public UndoStack undoRedoSpilled(Spilled spilled) {
+		var stack = spilled.document.getUndoStack();
+		for (int i = 0; i < HISTORY; i++) {
+			stack.undo();
+		}
+		for (int i = 0; i < HISTORY; i++) {
+			stack.redo();
+		}
+		return stack;
+	}
+
+	/**
+	 * Jumps to a random point in a long history, restoring the nearest checkpoint and
+	 * replaying from there.
+	 */
+	@Benchmark
+	public UndoStack jumpToRandomPosition(Timeline timeline) {
+		var stack = timeline.document.getUndoStack();
+		stack.jumpTo(timeline.random.nextInt(stack.size() + 1));
+		return stack;
+	}
+
+	@State(Scope.Thread)
+	public static class Timeline {
+
+		private static final int LENGTH = 20000;
+
+		private Document document;
+		private Random random;
+
+		@Setup
+		public void setup() {
+			document = Documents.random(10000, 1);
+			var undoStack = document.getUndoStack();
+			random = new Random(2);
+			var rectangles = document.getRectangles();
+			for (int i = 0; i < LENGTH; i++) {
+				var rect = rectangles.get(random.nextInt(rectangles.size()));
+				undoStack.push(new ResizeRectangleAction(rect, random.nextDouble() * 0.9, random.nextDouble() * 0.9, 0.05, 0.05));
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Spilled {
+
+		// About 50 resizes.
+		private static final long BUDGET = 4096;
+
+		private Document document;
+
+		@Setup
+		public void setup() {
+			document = Documents.random(10000, 1);
+			var undoStack = document.getUndoStack();
+			undoStack.setMemoryBudget(BUDGET);
+			var random = new Random(2);
+			var rectangles = document.getRectangles();
+			for (int i = 0; i < HISTORY; i++) {
+				var rect = rectangles.get(random.nextInt(rectangles.size()));
+				undoStack.push(new ResizeRectangleAction(rect, random.nextDouble() * 0.9, random.nextDouble() * 0.9, 0.05, 0.05));
+			}
+		}
+	}
+}
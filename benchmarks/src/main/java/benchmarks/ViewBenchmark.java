@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import main.Document;
+import main.Rectangle;
+
+/**
+ * The model-side work behind the UI: the labels ObjectListTab.populate() shows, the
+ * hit-test Editor does when selecting with the mouse, and the viewport query it culls
+ * with when zoomed in. None of them touch SWT, so these run headless.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewBenchmark {
+
+	private static final int POINTS = 1024;
+
+	// The viewport at 8x zoom covers an eighth of the document on each side.
+	private static final double VIEWPORT = 1.0 / 8;
+
+	@Param({
+		"1000", "10000", "100000", "1000000"
+	})
+	public int size;
+
+	private Document document;
+	private double[] points;
+	private int nextPoint;
+
+	@Setup
+	public void setup() {
+		document = Documents.random(size, 1);
+		points = Documents.randomPoints(POINTS, 3);
+		nextPoint = 0;
+	}
+
+	@Benchmark
+	public String[] buildLabels() {
+		return document.getRectangles().getLabels();
+	}
+
+	@Benchmark
+	public Rectangle hitTest() {
+		int i = nextPoint;
+		nextPoint = (nextPoint + 1) % POINTS;
+		return document.getTopmostRectangleAt(points[2 * i], points[2 * i + 1]);
+	}
+
+	@Benchmark
+	public int cullViewport() {
+		int i = nextPoint;
+		nextPoint = (nextPoint + 1) % POINTS;
+		double x = points[2 * i] * (1 - VIEWPORT);
+		double y = points[2 * i + 1] * (1 - VIEWPORT);
+		var count = new int[1];
+		document.forEachRectangleIn(x, y, VIEWPORT, VIEWPORT, rect->count[0]++);
+		return count[0];
+	}
+}
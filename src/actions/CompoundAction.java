@@ -0,0 +1,39 @@
+package actions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import main.Document.UndoActionView;
+
+/**
+ * Several actions that are done and undone as one, such as everything pushed during a
+ * transaction.
+ */
+public class CompoundAction implements UndoAction {
+
+	private final UndoAction[] actions;
+
+	public CompoundAction(List<UndoAction> actions) {
+		assert (!actions.isEmpty());
+		this.actions = actions.toArray(new UndoAction[actions.size()]);
+	}
+
+	@Override
+	public void doAction(UndoActionView view) {
+		for (var action : actions) {
+			action.doAction(view);
+		}
+	}
+
+	@Override
+	public void undoAction(UndoActionView view) {
+		// Later actions may depend on earlier ones, so undo them in reverse.
+		for (int i = actions.length - 1; i >= 0; i--) {
+			actions[i].undoAction(view);
+		}
+	}
+
+	public List<UndoAction> getActions() {
+		return Collections.unmodifiableList(Arrays.asList(actions));
+	}
+}
@@ -8,15 +8,67 @@ public class CreateRectangle implements UndoAction {
 	private Rectangle rectangle;
 	private boolean isCreating;
 
+	// The rectangle's bounds and name as it's added, so the action doesn't depend on
+	// what happened to the rectangle while it was out of the document.
+	private final double x;
+	private final double y;
+	private final double width;
+	private final double height;
+	private final String name;
+
 	public CreateRectangle(Rectangle rectangle, boolean isCreating) {
+		this(rectangle, isCreating, rectangle.getX(), rectangle.getY(), rectangle.getWidth(), rectangle.getHeight(), rectangle.getName());
+	}
+
+	/**
+	 * Recreates an action from the bounds and name the rectangle is added with.
+	 */
+	public CreateRectangle(Rectangle rectangle, boolean isCreating, double x, double y, double width, double height, String name) {
+		assert (rectangle != null);
 		this.rectangle = rectangle;
 		this.isCreating = isCreating;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.name = name;
+	}
+
+	public Rectangle getRectangle() {
+		return rectangle;
+	}
+
+	/**
+	 * @return True if this adds the rectangle, false if it removes it.
+	 */
+	public boolean isCreating() {
+		return isCreating;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getWidth() {
+		return width;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+
+	public String getName() {
+		return name;
 	}
 
 	@Override
 	public void doAction(UndoActionView view) {
 		if (isCreating) {
-			view.addRectangle(rectangle);
+			view.addRectangle(rectangle, x, y, width, height, name);
 		} else {
 			view.removeRectangle(rectangle);
 		}
@@ -27,7 +79,7 @@ public class CreateRectangle implements UndoAction {
 		if (isCreating) {
 			view.removeRectangle(rectangle);
 		} else {
-			view.addRectangle(rectangle);
+			view.addRectangle(rectangle, x, y, width, height, name);
 		}
 	}
 }
@@ -12,18 +12,51 @@ public class RenameRectangleAction implements UndoAction {
 	public RenameRectangleAction(Rectangle rect, String newName) {
 		this.rect = rect;
 		this.newName = newName;
-		oldName = rect.name;
+		oldName = rect.getName();
+	}
+
+	/**
+	 * Recreates an action from both names.
+	 */
+	public RenameRectangleAction(Rectangle rect, String oldName, String newName) {
+		this.rect = rect;
+		this.newName = newName;
+		this.oldName = oldName;
+	}
+
+	@Override
+	public UndoAction mergeWith(UndoAction next) {
+		if (!(next instanceof RenameRectangleAction)) {
+			return null;
+		}
+		var other = (RenameRectangleAction) next;
+		if (other.rect != rect || !other.oldName.equals(newName)) {
+			return null;
+		}
+		return new RenameRectangleAction(rect, oldName, other.newName);
+	}
+
+	public Rectangle getRectangle() {
+		return rect;
+	}
+
+	public String getOldName() {
+		return oldName;
+	}
+
+	public String getNewName() {
+		return newName;
 	}
 
 	@Override
 	public void doAction(UndoActionView view) {
-		assert (rect.name.equals(oldName));
-		rect.name = newName;
+		assert (rect.getName().equals(oldName));
+		view.setName(rect, newName);
 	}
 
 	@Override
 	public void undoAction(UndoActionView view) {
-		assert (rect.name.equals(newName));
-		rect.name = oldName;
+		assert (rect.getName().equals(newName));
+		view.setName(rect, oldName);
 	}
 }
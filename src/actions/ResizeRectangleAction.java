@@ -1,6 +1,7 @@
 package actions;
 
 import main.Document.UndoActionView;
+import main.FixedPoint;
 import main.Rectangle;
 
 public class ResizeRectangleAction implements UndoAction {
@@ -20,37 +21,102 @@ public class ResizeRectangleAction implements UndoAction {
 	public ResizeRectangleAction(Rectangle rect, double x, double y, double width, double height) {
 		assert (rect != null);
 		this.rect = rect;
-		oldX = rect.x;
-		oldY = rect.y;
-		oldWidth = rect.width;
-		oldHeight = rect.height;
+		oldX = rect.getX();
+		oldY = rect.getY();
+		oldWidth = rect.getWidth();
+		oldHeight = rect.getHeight();
 		newX = x;
 		newY = y;
 		newWidth = width;
 		newHeight = height;
 	}
 
+	/**
+	 * Recreates an action from both sets of bounds.
+	 */
+	public ResizeRectangleAction(Rectangle rect, double oldX, double oldY, double oldWidth, double oldHeight, double newX, double newY, double newWidth,
+		double newHeight) {
+		assert (rect != null);
+		this.rect = rect;
+		this.oldX = oldX;
+		this.oldY = oldY;
+		this.oldWidth = oldWidth;
+		this.oldHeight = oldHeight;
+		this.newX = newX;
+		this.newY = newY;
+		this.newWidth = newWidth;
+		this.newHeight = newHeight;
+	}
+
+	@Override
+	public UndoAction mergeWith(UndoAction next) {
+		if (!(next instanceof ResizeRectangleAction)) {
+			return null;
+		}
+		var other = (ResizeRectangleAction) next;
+		if (other.rect != rect || !storedEqual(other.oldX, newX) || !storedEqual(other.oldY, newY) || !storedEqual(other.oldWidth, newWidth)
+			|| !storedEqual(other.oldHeight, newHeight)) {
+			return null;
+		}
+		return new ResizeRectangleAction(rect, oldX, oldY, oldWidth, oldHeight, other.newX, other.newY, other.newWidth, other.newHeight);
+	}
+
+	/**
+	 * In fixed-point mode the new bounds are rounded when they're applied, so the next
+	 * action's old bounds only match them once they're rounded too.
+	 */
+	private boolean storedEqual(double a, double b) {
+		if (rect.isFixedPoint()) {
+			return FixedPoint.fromRatio(a) == FixedPoint.fromRatio(b);
+		}
+		return a == b;
+	}
+
+	public Rectangle getRectangle() {
+		return rect;
+	}
+
+	public double getOldX() {
+		return oldX;
+	}
+
+	public double getOldY() {
+		return oldY;
+	}
+
+	public double getOldWidth() {
+		return oldWidth;
+	}
+
+	public double getOldHeight() {
+		return oldHeight;
+	}
+
+	public double getNewX() {
+		return newX;
+	}
+
+	public double getNewY() {
+		return newY;
+	}
+
+	public double getNewWidth() {
+		return newWidth;
+	}
+
+	public double getNewHeight() {
+		return newHeight;
+	}
+
 	@Override
 	public void doAction(UndoActionView view) {
-		assert (rect.x == oldX);
-		assert (rect.y == oldY);
-		assert (rect.width == oldWidth);
-		assert (rect.height == oldHeight);
-		rect.x = newX;
-		rect.y = newY;
-		rect.width = newWidth;
-		rect.height = newHeight;
+		assert (rect.hasBounds(oldX, oldY, oldWidth, oldHeight));
+		view.setBounds(rect, newX, newY, newWidth, newHeight);
 	}
 
 	@Override
 	public void undoAction(UndoActionView view) {
-		assert (rect.x == newX);
-		assert (rect.y == newY);
-		assert (rect.width == newWidth);
-		assert (rect.height == newHeight);
-		rect.x = oldX;
-		rect.y = oldY;
-		rect.width = oldWidth;
-		rect.height = oldHeight;
+		assert (rect.hasBounds(newX, newY, newWidth, newHeight));
+		view.setBounds(rect, oldX, oldY, oldWidth, oldHeight);
 	}
 }
@@ -7,4 +7,14 @@ public interface UndoAction {
 	void doAction(UndoActionView view);
 
 	void undoAction(UndoActionView view);
+
+	/**
+	 * Folds an action pushed straight after this one into it, so that a single undo
+	 * reverts both. UndoStack only asks if the two were pushed within its merge window.
+	 *
+	 * @return The combined action, or null if they can't be combined.
+	 */
+	default UndoAction mergeWith(UndoAction next) {
+		return null;
+	}
 }
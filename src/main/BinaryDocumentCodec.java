@@ -0,0 +1,508 @@
+package main;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Reads and writes documents in a compact binary format. Files are read through a
+ * memory map, and the coordinate columns are copied straight into the RectangleStore.
+ * The map is released as soon as the document has been read, so the file can be saved
+ * over straight away.
+ *
+ * The layout (all numbers little-endian) is:
+ *
+ * <pre>
+ * header:       "UIBD", version, flags, units, rectangle count, string count (6 x int32)
+ * strings:      for each string, its UTF-8 length (int32) and bytes
+ * padding:      zeroes up to a multiple of 8 bytes
+ * columns:      x, y, width and height for every rectangle, one column at a time
+ *               (float64 ratios, or int32 units if FLAG_FIXED_POINT is set)
+ * names:        a string index per rectangle (int32)
+ * properties:   a property count per rectangle (int32, -1 for no properties), then
+ *               every rectangle's entries in order: key string index (int32), a tag
+ *               byte, and the value
+ * </pre>
+ *
+ * Names, property keys and string values are all stored once in the string table.
+ * Property values that aren't numbers, booleans or strings are stored as JSON text.
+ */
+public class BinaryDocumentCodec {
+
+	public static final String EXTENSION = ".uib";
+
+	private static final byte[] MAGIC = {
+		'U', 'I', 'B', 'D'
+	};
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	private static final int FLAG_FIXED_POINT = 1;
+
+	// Property value tags. The value follows the tag.
+	private static final byte TAG_NUMBER = 0; // float64
+	private static final byte TAG_BOOLEAN = 1; // one byte
+	private static final byte TAG_NULL = 2; // nothing
+	private static final byte TAG_STRING = 3; // string index
+	private static final byte TAG_JSON = 4; // string index of the JSON text
+
+	private BinaryDocumentCodec() {}
+
+	/**
+	 * @return True if the file starts with the binary format's magic number.
+	 */
+	public static boolean isBinary(Path file) throws IOException {
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			var magic = ByteBuffer.allocate(MAGIC.length);
+			while (magic.hasRemaining()) {
+				if (channel.read(magic) < 0) {
+					return false;
+				}
+			}
+			return Arrays.equals(magic.array(), MAGIC);
+		}
+	}
+
+	public static Document read(Path file) throws IOException {
+		MappedByteBuffer buffer;
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Binary document is too large to map: " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		try {
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return read(buffer);
+		} catch (BufferUnderflowException e) {
+			// The counts are checked against what's left, but property values can still
+			// run off the end.
+			throw new IOException("Binary document is truncated.", e);
+		} finally {
+			// Nothing refers to the map once the document is read. Windows won't let the
+			// file be replaced while it's mapped, so don't wait for the collector.
+			unmap(buffer);
+		}
+	}
+
+	/**
+	 * Releases a map straight away, instead of whenever it's garbage collected. There's
+	 * no public way to do that, so this goes through sun.misc.Unsafe, and leaves it to
+	 * the collector if that isn't there.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			var unsafeClass = Class.forName("sun.misc.Unsafe");
+			var field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Ignore it.
+		}
+	}
+
+	private static Document read(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE) {
+			throw truncated();
+		}
+		var magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a binary document.");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary document version: " + version);
+		}
+		int flags = buffer.getInt();
+		int units = buffer.getInt();
+		int count = buffer.getInt();
+		int stringCount = buffer.getInt();
+		boolean fixedPoint = (flags & FLAG_FIXED_POINT) != 0;
+		if (count < 0 || stringCount < 0 || (fixedPoint && units <= 0)) {
+			throw corrupt();
+		}
+		// Every string has a length, so the count can be checked before allocating.
+		if (stringCount > buffer.remaining() / Integer.BYTES) {
+			throw truncated();
+		}
+
+		// Strings.
+		var strings = new String[stringCount];
+		var bytes = new byte[64];
+		for (int i = 0; i < stringCount; i++) {
+			int length = buffer.getInt();
+			if (length < 0) {
+				throw corrupt();
+			}
+			if (length > buffer.remaining()) {
+				throw truncated();
+			}
+			if (length > bytes.length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			buffer.get(bytes, 0, length);
+			strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+		int columnsStart = align(buffer.position());
+		int coordinateSize = fixedPoint ? Integer.BYTES : Double.BYTES;
+		if (columnsStart > buffer.limit() || count > (buffer.limit() - columnsStart) / (4 * coordinateSize + Integer.BYTES + Integer.BYTES)) {
+			throw truncated();
+		}
+		buffer.position(columnsStart);
+
+		// Columns. The store needs at least one slot of capacity.
+		int capacity = Math.max(count, 1);
+		var names = new String[capacity];
+		var store = new RectangleStore(false);
+		if (fixedPoint) {
+			var xs = new int[capacity];
+			var ys = new int[capacity];
+			var widths = new int[capacity];
+			var heights = new int[capacity];
+			readColumn(buffer, xs, count);
+			readColumn(buffer, ys, count);
+			readColumn(buffer, widths, count);
+			readColumn(buffer, heights, count);
+			if (units != FixedPoint.SCALE) {
+				rescale(xs, count, units);
+				rescale(ys, count, units);
+				rescale(widths, count, units);
+				rescale(heights, count, units);
+			}
+			readNames(buffer, strings, names, count);
+			store.loadFixed(count, xs, ys, widths, heights, names);
+		} else {
+			var xs = new double[capacity];
+			var ys = new double[capacity];
+			var widths = new double[capacity];
+			var heights = new double[capacity];
+			readColumn(buffer, xs, count);
+			readColumn(buffer, ys, count);
+			readColumn(buffer, widths, count);
+			readColumn(buffer, heights, count);
+			readNames(buffer, strings, names, count);
+			store.load(count, xs, ys, widths, heights, names);
+		}
+
+		// Properties.
+		var propertyCounts = new int[count];
+		readColumn(buffer, propertyCounts, count);
+		for (int slot = 0; slot < count; slot++) {
+			int entries = propertyCounts[slot];
+			if (entries == -1) {
+				continue;
+			}
+			// Every entry has at least a key and a tag.
+			if (entries < 0) {
+				throw corrupt();
+			}
+			if (entries > buffer.remaining() / (Integer.BYTES + 1)) {
+				throw truncated();
+			}
+			var properties = new PropertyMap();
+			for (int i = 0; i < entries; i++) {
+				var key = readString(buffer, strings);
+				byte tag = buffer.get();
+				switch (tag) {
+					case TAG_NUMBER:
+						properties.putNumber(key, buffer.getDouble());
+						break;
+					case TAG_BOOLEAN:
+						properties.putBoolean(key, buffer.get() != 0);
+						break;
+					case TAG_NULL:
+						properties.put(key, null);
+						break;
+					case TAG_STRING:
+						properties.put(key, readString(buffer, strings));
+						break;
+					case TAG_JSON:
+						try {
+							properties.put(key, new JsonParser().parse(readString(buffer, strings)));
+						} catch (JsonParseException e) {
+							throw new IOException("Binary document is corrupt.", e);
+						}
+						break;
+					default:
+						throw new IOException("Unknown property tag: " + tag);
+				}
+			}
+			store.getRectangleInSlot(slot).properties = properties;
+		}
+
+		var ret = new Document(store);
+		ret.setFileFormat(Document.FileFormat.Binary);
+		return ret;
+	}
+
+	private static void readColumn(ByteBuffer buffer, double[] column, int count) {
+		buffer.asDoubleBuffer().get(column, 0, count);
+		buffer.position(buffer.position() + count * Double.BYTES);
+	}
+
+	private static void readColumn(ByteBuffer buffer, int[] column, int count) {
+		buffer.asIntBuffer().get(column, 0, count);
+		buffer.position(buffer.position() + count * Integer.BYTES);
+	}
+
+	private static void readNames(ByteBuffer buffer, String[] strings, String[] names, int count) throws IOException {
+		for (int slot = 0; slot < count; slot++) {
+			names[slot] = readString(buffer, strings);
+		}
+	}
+
+	/**
+	 * Reads a string index and looks it up in the string table.
+	 */
+	private static String readString(ByteBuffer buffer, String[] strings) throws IOException {
+		int index = buffer.getInt();
+		if (index < 0 || index >= strings.length) {
+			throw corrupt();
+		}
+		return strings[index];
+	}
+
+	private static IOException truncated() {
+		return new IOException("Binary document is truncated.");
+	}
+
+	private static IOException corrupt() {
+		return new IOException("Binary document is corrupt.");
+	}
+
+	/**
+	 * Converts a column written with a different number of units per ratio.
+	 */
+	private static void rescale(int[] column, int count, int units) {
+		for (int i = 0; i < count; i++) {
+			column[i] = FixedPoint.fromRatio(column[i] / (double) units);
+		}
+	}
+
+	public static void write(Document document, Path file) throws IOException {
+		write(document.getRectangles(), file);
+	}
+
+	public static void write(RectangleStore rectangles, Path file) throws IOException {
+		var buffer = encode(rectangles);
+		try (var channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	private static ByteBuffer encode(RectangleStore store) {
+		var strings = new StringTable();
+		int count = store.size();
+		int slotCount = store.getSlotCount();
+
+		// First pass: collect the strings and work out how big everything is.
+		int propertyBytes = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			var rect = store.getRectangleInSlot(slot);
+			if (rect == null) {
+				continue;
+			}
+			strings.add(store.getName(slot));
+			var properties = rect.properties;
+			if (properties == null) {
+				continue;
+			}
+			for (int i = 0; i < properties.size(); i++) {
+				strings.add(properties.keyAt(i));
+				propertyBytes += Integer.BYTES + 1;
+				switch (properties.typeAt(i)) {
+					case PropertyMap.NUMBER:
+						propertyBytes += Double.BYTES;
+						break;
+					case PropertyMap.BOOLEAN:
+						propertyBytes += 1;
+						break;
+					default:
+						var text = objectText(properties.objectAt(i));
+						if (text != null) {
+							strings.add(text);
+							propertyBytes += Integer.BYTES;
+						}
+						break;
+				}
+			}
+		}
+
+		boolean fixedPoint = store.isFixedPoint();
+		int coordinateSize = fixedPoint ? Integer.BYTES : Double.BYTES;
+		long size = align(HEADER_SIZE + strings.byteSize);
+		size += (long) count * (4 * coordinateSize + Integer.BYTES + Integer.BYTES);
+		size += propertyBytes;
+		if (size > Integer.MAX_VALUE) {
+			throw new RuntimeException("Document is too large for the binary format.");
+		}
+		var buffer = ByteBuffer.allocate((int) size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Header and strings.
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(fixedPoint ? FLAG_FIXED_POINT : 0);
+		buffer.putInt(fixedPoint ? FixedPoint.SCALE : 0);
+		buffer.putInt(count);
+		buffer.putInt(strings.encoded.size());
+		for (var bytes : strings.encoded) {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+		buffer.position(align(buffer.position()));
+
+		// Columns, skipping empty slots.
+		if (fixedPoint) {
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putInt(store.getFixedX(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putInt(store.getFixedY(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putInt(store.getFixedWidth(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putInt(store.getFixedHeight(slot));
+				}
+			}
+		} else {
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putDouble(store.getX(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putDouble(store.getY(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putDouble(store.getWidth(slot));
+				}
+			}
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					buffer.putDouble(store.getHeight(slot));
+				}
+			}
+		}
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (store.getRectangleInSlot(slot) != null) {
+				buffer.putInt(strings.indexOf(store.getName(slot)));
+			}
+		}
+
+		// Properties.
+		for (int slot = 0; slot < slotCount; slot++) {
+			var rect = store.getRectangleInSlot(slot);
+			if (rect != null) {
+				buffer.putInt(rect.properties == null ? -1 : rect.properties.size());
+			}
+		}
+		for (int slot = 0; slot < slotCount; slot++) {
+			var rect = store.getRectangleInSlot(slot);
+			if (rect == null || rect.properties == null) {
+				continue;
+			}
+			var properties = rect.properties;
+			for (int i = 0; i < properties.size(); i++) {
+				buffer.putInt(strings.indexOf(properties.keyAt(i)));
+				switch (properties.typeAt(i)) {
+					case PropertyMap.NUMBER:
+						buffer.put(TAG_NUMBER);
+						buffer.putDouble(properties.numberAt(i));
+						break;
+					case PropertyMap.BOOLEAN:
+						buffer.put(TAG_BOOLEAN);
+						buffer.put((byte) (properties.numberAt(i) != 0 ? 1 : 0));
+						break;
+					default:
+						var object = properties.objectAt(i);
+						var text = objectText(object);
+						if (text == null) {
+							buffer.put(TAG_NULL);
+						} else {
+							buffer.put(object instanceof String ? TAG_STRING : TAG_JSON);
+							buffer.putInt(strings.indexOf(text));
+						}
+						break;
+				}
+			}
+		}
+		assert (!buffer.hasRemaining());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return The string to store for a non-primitive property value: the string itself,
+	 *         JSON text for anything else, or null for null.
+	 */
+	private static String objectText(Object object) {
+		if (object == null) {
+			return null;
+		} else if (object instanceof String) {
+			return (String) object;
+		} else if (object instanceof JsonElement) {
+			return DocumentCodec.getGson().toJson((JsonElement) object);
+		} else {
+			return DocumentCodec.getGson().toJson(object, object.getClass());
+		}
+	}
+
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Assigns each distinct string an index, in the order they're first added.
+	 */
+	private static class StringTable {
+		private HashMap<String, Integer> indices = new HashMap<>();
+		private ArrayList<byte[]> encoded = new ArrayList<>();
+		private long byteSize = 0;
+
+		void add(String value) {
+			if (!indices.containsKey(value)) {
+				var bytes = value.getBytes(StandardCharsets.UTF_8);
+				indices.put(value, encoded.size());
+				encoded.add(bytes);
+				byteSize += Integer.BYTES + bytes.length;
+			}
+		}
+
+		int indexOf(String value) {
+			return indices.get(value);
+		}
+	}
+}
@@ -4,13 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Collection;
 import java.util.function.Consumer;
-import com.google.gson.Gson;
 import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
-import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import actions.CreateRectangle;
@@ -19,13 +16,17 @@ import actions.CreateRectangle;
 @JsonAdapter(Document.DocumentTypeAdapter.class)
 public class Document {
 
-	private ArrayList<Rectangle> rectangles;
+	private RectangleStore rectangles;
+	private SpatialIndex spatialIndex;
 
-	private List<Rectangle> rectanglesView;
-	private int currentSelection;
+	// Stored as a rectangle rather than an index, so that it stays correct when
+	// rectangles before it are removed or reordered.
+	private Rectangle selectedRectangle;
 	private Path filepath;
 	private String filename;
+	private FileFormat fileFormat;
 	private UndoStack undoStack;
+	private SaveJournal journal;
 	private boolean hasUnsavedChanges;
 
 	// TODO: Should the temp resize dimensions be in Document?
@@ -37,16 +38,27 @@ public class Document {
 	private ArrayList<TemporaryResizeListener> tempResizeListeners;
 	private ArrayList<Consumer<Rectangle>> selectionListeners;
 	private int selectionListenersSemaphore;
+	// Set when the selection changes during a transaction, so listeners hear about it
+	// when it ends.
+	private boolean selectionChangedInTransaction;
 
 	private Object resizeSource;
 
-	private Document(ArrayList<Rectangle> rectangles) {
+	/**
+	 * Used when loading, to wrap a store that was filled directly.
+	 */
+	Document(RectangleStore rectangles) {
 		this.rectangles = rectangles;
-		rectanglesView = Collections.unmodifiableList(rectangles);
-		currentSelection = -1;
+		spatialIndex = new SpatialIndex();
+		for (var rect : rectangles) {
+			spatialIndex.insert(rect);
+		}
+		selectedRectangle = null;
 		filepath = null;
 		filename = "Untitled";
+		fileFormat = FileFormat.Json;
 		undoStack = new UndoStack(new UndoActionView(this));
+		journal = new SaveJournal();
 		hasUnsavedChanges = false;
 		resizeSource = null;
 
@@ -59,15 +71,48 @@ public class Document {
 
 		selectionListeners = new ArrayList<>();
 		selectionListenersSemaphore = 0;
+		selectionChangedInTransaction = false;
 
-		undoStack.addListener(action->hasUnsavedChanges = true);
+		undoStack.addListener(event->hasUnsavedChanges = true);
 	}
 
 	/**
 	 * Creates a new, untitled document.
 	 */
 	public Document() {
-		this(new ArrayList<>());
+		this(new RectangleStore(false));
+	}
+
+	/**
+	 * Creates a new, untitled document.
+	 * 
+	 * @param fixedPoint If true, coordinates are stored as FixedPoint units instead of doubles.
+	 */
+	public Document(boolean fixedPoint) {
+		this(new RectangleStore(fixedPoint));
+	}
+
+	public boolean isFixedPoint() {
+		return rectangles.isFixedPoint();
+	}
+
+	/**
+	 * Switches how coordinates are stored. Switching to fixed-point rounds every
+	 * coordinate to the nearest FixedPoint unit. This isn't an undoable action.
+	 */
+	public void setFixedPoint(boolean value) {
+		if (value == isFixedPoint()) {
+			return;
+		}
+		// Rounding can move rectangles between cells, so the index has to be rebuilt.
+		spatialIndex = new SpatialIndex();
+		rectangles.setFixedPoint(value);
+		for (var rect : rectangles) {
+			spatialIndex.insert(rect);
+		}
+		// The journal can't express this, so the next save has to be a full one.
+		journal.invalidate();
+		hasUnsavedChanges = true;
 	}
 
 	public boolean hasUnsavedChanges() {
@@ -103,14 +148,37 @@ public class Document {
 		return filepath;
 	}
 
-	public List<Rectangle> getRectangles() {
-		return rectanglesView;
+	/**
+	 * The format the document is saved in. Set when opening a file or choosing Save As.
+	 */
+	public FileFormat getFileFormat() {
+		return fileFormat;
+	}
+
+	public void setFileFormat(FileFormat format) {
+		assert (format != null);
+		fileFormat = format;
+	}
+
+	public RectangleStore getRectangles() {
+		return rectangles;
 	}
 
 	public void addRectangle(Rectangle rect) {
 		addRectangle(rect, true);
 	}
 
+	/**
+	 * Adds several rectangles as one undoable action. The last one ends up selected.
+	 */
+	public void addRectangles(Collection<Rectangle> rects) {
+		beginTransaction();
+		for (var rect : rects) {
+			addRectangle(rect, true);
+		}
+		commitTransaction();
+	}
+
 	private void addRectangle(Rectangle rect, boolean makeUndoAction) {
 		assert (rect != null);
 		assert (!rectangles.contains(rect));
@@ -119,8 +187,10 @@ public class Document {
 			undoStack.push(action);
 			notifySelectionListeners();
 		} else {
-			rectangles.add(rect);
-			currentSelection = rectangles.size() - 1;
+			rectangles.append(rect);
+			spatialIndex.insert(rect);
+			selectedRectangle = rect;
+			journal.recordAdd(rect);
 		}
 	}
 
@@ -128,6 +198,17 @@ public class Document {
 		removeRectangle(rect, true);
 	}
 
+	/**
+	 * Removes several rectangles as one undoable action.
+	 */
+	public void removeRectangles(Collection<Rectangle> rects) {
+		beginTransaction();
+		for (var rect : rects) {
+			removeRectangle(rect, true);
+		}
+		commitTransaction();
+	}
+
 	private void removeRectangle(Rectangle rect, boolean makeUndoAction) {
 		assert (rect != null);
 		assert (rectangles.contains(rect));
@@ -135,46 +216,91 @@ public class Document {
 			var action = new CreateRectangle(rect, false);
 			undoStack.push(action);
 		} else {
-			var index = rectangles.indexOf(rect);
-			if (currentSelection == index) {
-				currentSelection = -1;
+			if (selectedRectangle == rect) {
+				selectedRectangle = null;
 				notifySelectionListeners();
 			}
-			rectangles.remove(rect);
+			if (journal.isRecording()) {
+				journal.recordRemove(rectangles.indexOf(rect));
+			}
+			rectangles.delete(rect);
+			spatialIndex.remove(rect);
+		}
+	}
+
+	/**
+	 * Finds the rectangle drawn on top at the given point, i.e. the one latest in
+	 * the rectangle list.
+	 * 
+	 * @return The rectangle, or null if there is no rectangle at that point.
+	 */
+	public Rectangle getTopmostRectangleAt(double x, double y) {
+		Rectangle topmost = null;
+		int topmostIndex = -1;
+		for (var rect : spatialIndex.getAllAt(x, y)) {
+			var index = rectangles.indexOf(rect);
+			if (index > topmostIndex) {
+				topmostIndex = index;
+				topmost = rect;
+			}
+		}
+		return topmost;
+	}
+
+	/**
+	 * Calls the consumer with every rectangle that touches the region, in no particular
+	 * order.
+	 */
+	public void forEachRectangleIn(double x, double y, double width, double height, Consumer<Rectangle> consumer) {
+		spatialIndex.forEachIn(x, y, width, height, consumer);
+	}
+
+	private void setBounds(Rectangle rect, double x, double y, double width, double height) {
+		assert (rect != null);
+		// The index is keyed on the old bounds, so take it out before changing them.
+		spatialIndex.remove(rect);
+		rect.setBounds(x, y, width, height);
+		spatialIndex.insert(rect);
+		if (journal.isRecording()) {
+			journal.recordBounds(rectangles.indexOf(rect), rect);
+		}
+	}
+
+	private void setName(Rectangle rect, String name) {
+		assert (rect != null);
+		rect.setName(name);
+		if (journal.isRecording()) {
+			journal.recordName(rectangles.indexOf(rect), name);
 		}
 	}
 
 	public void setSelectedRectangle(int index) {
 		assert (index >= 0);
-		currentSelection = index;
+		selectedRectangle = rectangles.get(index);
 		notifySelectionListeners();
 	}
 
 	public void setSelectedRectangle(Rectangle rectangle) {
-		if (rectangle == null) {
-			currentSelection = -1;
-		} else {
-			currentSelection = rectangles.indexOf(rectangle);
-			assert (currentSelection != -1);
-		}
+		assert (rectangle == null || rectangles.contains(rectangle));
+		selectedRectangle = rectangle;
 		notifySelectionListeners();
 	}
 
 	public Rectangle getSelectedRectangle() {
-		if (currentSelection == -1) {
-			return null;
-		} else {
-			return rectangles.get(currentSelection);
-		}
+		return selectedRectangle;
 	}
 
 	public int getSelectedIndex() {
-		return currentSelection;
+		if (selectedRectangle == null) {
+			return -1;
+		} else {
+			return rectangles.indexOf(selectedRectangle);
+		}
 	}
 
 	public void setTempSize(Object source, double x, double y, double width, double height) {
 		assert (source != null);
-		if (resizeSource != null) {
+		if (resizeSource != null && resizeSource != source) {
 			cancelTempSize(resizeSource);
 		}
 		resizeSource = source;
@@ -185,7 +311,7 @@ public class Document {
 		tempHeight = height;
 		var listeners = new ArrayList<>(tempResizeListeners);
 		if (!isInResizeMode) {
-			assert (currentSelection != -1);
+			assert (selectedRectangle != null);
 			isInResizeMode = true;
 
 			for (var listener : listeners) {
@@ -229,12 +355,11 @@ public class Document {
 			return;
 		}
 
-		var oldSelection = getSelectedRectangle();
-
-		rectangles.remove(oldIndex);
-		rectangles.add(newIndex, original);
+		rectangles.reorder(original, newIndex);
+		journal.recordMove(oldIndex, newIndex);
 
-		setSelectedRectangle(oldSelection);
+		// The selection itself hasn't changed, but its index might have.
+		notifySelectionListeners();
 	}
 
 	public double getTempX() {
@@ -253,16 +378,50 @@ public class Document {
 		return tempHeight;
 	}
 
+	SaveJournal getJournal() {
+		return journal;
+	}
+
 	public UndoStack getUndoStack() {
 		return undoStack;
 	}
 
+	/**
+	 * Groups every change until commitTransaction() into one undo entry. Undo listeners
+	 * and selection listeners are each notified at most once, when it's committed. Use
+	 * these rather than the UndoStack's, so that selection changes are batched too.
+	 */
+	public void beginTransaction() {
+		undoStack.beginTransaction();
+	}
+
+	public void commitTransaction() {
+		undoStack.commitTransaction();
+		flushSelectionChange();
+	}
+
+	/**
+	 * Reverts every change since beginTransaction().
+	 */
+	public void rollbackTransaction() {
+		undoStack.rollbackTransaction();
+		flushSelectionChange();
+	}
+
+	private void flushSelectionChange() {
+		if (!undoStack.isInTransaction() && selectionChangedInTransaction) {
+			selectionChangedInTransaction = false;
+			notifySelectionListeners();
+		}
+	}
+
 	private void notifySelectionListeners() {
-		var listeners = new ArrayList<>(selectionListeners);
-		Rectangle selected = null;
-		if (currentSelection != -1) {
-			selected = rectangles.get(currentSelection);
+		if (undoStack.isInTransaction()) {
+			selectionChangedInTransaction = true;
+			return;
 		}
+		var listeners = new ArrayList<>(selectionListeners);
+		var selected = selectedRectangle;
 
 		// This cancels any other notifySelectionListeners() currently running.
 		selectionListenersSemaphore += 1;
@@ -310,6 +469,10 @@ public class Document {
 		hasUnsavedChanges = value;
 	}
 
+	public static enum FileFormat {
+		Json, Binary
+	}
+
 	public static interface TemporaryResizeListener {
 		void resizeStarted(Object source);
 
@@ -318,34 +481,70 @@ public class Document {
 		void resizeCancelled(Object source);
 	}
 
+	/**
+	 * Streams rectangles straight between the JSON and the RectangleStore's columns.
+	 * Use DocumentCodec rather than creating a Gson instance to call this.
+	 */
 	public static class DocumentTypeAdapter extends TypeAdapter<Document> {
 		@Override
 		public void write(JsonWriter out, Document value) throws IOException {
+			write(out, value.rectangles);
+		}
+
+		static void write(JsonWriter out, RectangleStore store) throws IOException {
 			out.beginObject();
+			if (store.isFixedPoint()) {
+				// Rectangle coordinates are written as units.
+				out.name("units").value(FixedPoint.SCALE);
+			}
 			out.name("rectangles");
-			var gson = new Gson();
-			var token = new TypeToken<ArrayList<Rectangle>>() {};
-			gson.toJson(value.rectangles, token.getType(), out);
+			out.beginArray();
+			int slotCount = store.getSlotCount();
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (store.getRectangleInSlot(slot) != null) {
+					Rectangle.RectangleTypeAdapter.writeSlot(out, store, slot);
+				}
+			}
+			out.endArray();
 			out.endObject();
 		}
 
 		@Override
 		public Document read(JsonReader in) throws IOException {
 			in.beginObject();
-			ArrayList<Rectangle> rectangles = null;
-			var gson = new Gson();
-			var token = new TypeToken<ArrayList<Rectangle>>() {};
+			// Rectangles are always read as doubles, and converted afterwards if the file
+			// turns out to be in units.
+			var store = new RectangleStore(false);
+			boolean hasRectangles = false;
+			int units = 0;
+			var scratch = new Rectangle.Detached();
 			while (in.hasNext()) {
 				String name = in.nextName();
 				if (name.equalsIgnoreCase("rectangles")) {
-					rectangles = gson.fromJson(in, token.getType());
+					in.beginArray();
+					while (in.hasNext()) {
+						Rectangle.RectangleTypeAdapter.readInto(in, store, scratch);
+					}
+					in.endArray();
+					hasRectangles = true;
+				} else if (name.equalsIgnoreCase("units")) {
+					units = in.nextInt();
 				} else {
 					in.skipValue();
 				}
 			}
 			in.endObject();
-			assert (rectangles != null);
-			return new Document(rectangles);
+			assert (hasRectangles);
+			if (units != 0) {
+				// The coordinates were read as units, convert them back to ratios.
+				double scale = units;
+				int slotCount = store.getSlotCount();
+				for (int slot = 0; slot < slotCount; slot++) {
+					store.setBounds(slot, store.getX(slot) / scale, store.getY(slot) / scale, store.getWidth(slot) / scale, store.getHeight(slot) / scale);
+				}
+				store.setFixedPoint(true);
+			}
+			return new Document(store);
 		}
 	}
 
@@ -355,22 +554,77 @@ public class Document {
 	 */
 	public static class UndoActionView {
 		private Document parent;
+		// What the actions have changed since startRecording(), or null.
+		private ArrayList<UndoEvent.Change> changes;
 
 		public UndoActionView(Document parent) {
 			this.parent = parent;
+			changes = null;
 		}
 
 		public Document getParent() {
 			return parent;
 		}
 
+		/**
+		 * Starts collecting the changes that actions make through this view, for an
+		 * UndoEvent. Recording carries on until stopRecording().
+		 */
+		void startRecording() {
+			assert (changes == null);
+			changes = new ArrayList<>();
+		}
+
+		ArrayList<UndoEvent.Change> stopRecording() {
+			assert (changes != null);
+			var ret = changes;
+			changes = null;
+			return ret;
+		}
+
 		public void addRectangle(Rectangle rectangle) {
 			parent.addRectangle(rectangle, false);
+			if (changes != null) {
+				changes.add(UndoEvent.Change.added(rectangle, parent.rectangles.size() - 1));
+			}
+		}
+
+		/**
+		 * Adds a rectangle with the given bounds and name. It's out of the document, so
+		 * nothing else sees them change.
+		 */
+		public void addRectangle(Rectangle rectangle, double x, double y, double width, double height, String name) {
+			assert (rectangle.store == null);
+			rectangle.setBounds(x, y, width, height);
+			rectangle.setName(name);
+			addRectangle(rectangle);
 		}
 
 		public void removeRectangle(Rectangle rectangle) {
+			if (changes != null) {
+				changes.add(UndoEvent.Change.removed(rectangle, parent.rectangles.indexOf(rectangle)));
+			}
 			parent.removeRectangle(rectangle, false);
 		}
+
+		public void setBounds(Rectangle rectangle, double x, double y, double width, double height) {
+			double oldX = rectangle.getX();
+			double oldY = rectangle.getY();
+			double oldWidth = rectangle.getWidth();
+			double oldHeight = rectangle.getHeight();
+			parent.setBounds(rectangle, x, y, width, height);
+			if (changes != null) {
+				changes.add(UndoEvent.Change.bounds(rectangle, parent.rectangles.indexOf(rectangle), oldX, oldY, oldWidth, oldHeight));
+			}
+		}
+
+		public void setName(Rectangle rectangle, String name) {
+			var oldName = rectangle.getName();
+			parent.setName(rectangle, name);
+			if (changes != null) {
+				changes.add(UndoEvent.Change.renamed(rectangle, parent.rectangles.indexOf(rectangle), oldName));
+			}
+		}
 	}
 
 }
@@ -0,0 +1,50 @@
+package main;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Reads and writes documents as JSON.
+ *
+ * Creating a Gson instance is expensive, and so is looking up @JsonAdapter annotations,
+ * so this keeps one shared instance with every adapter registered up front.
+ */
+public class DocumentCodec {
+
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(Document.class, new Document.DocumentTypeAdapter())
+			.registerTypeAdapter(Rectangle.class, new Rectangle.RectangleTypeAdapter())
+			.registerTypeAdapter(PropertyMap.class, new PropertyMap.PropertyMapTypeAdapter())
+			.create();
+
+	private DocumentCodec() {}
+
+	/**
+	 * Gson instances are thread-safe, so this can be shared freely.
+	 */
+	public static Gson getGson() {
+		return gson;
+	}
+
+	public static Document read(Reader input) throws JsonIOException, JsonSyntaxException {
+		return gson.fromJson(input, Document.class);
+	}
+
+	public static void write(Document document, Writer output) throws JsonIOException {
+		gson.toJson(document, Document.class, output);
+	}
+
+	/**
+	 * Writes a document's rectangles, e.g. from a RectangleStore snapshot.
+	 */
+	public static void write(RectangleStore rectangles, Writer output) throws IOException {
+		var out = gson.newJsonWriter(output);
+		Document.DocumentTypeAdapter.write(out, rectangles);
+		out.flush();
+	}
+}
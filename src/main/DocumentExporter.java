@@ -0,0 +1,119 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import com.google.gson.JsonParseException;
+
+/**
+ * Renders documents to PNG files without a display, using ImageRenderer.
+ *
+ * Usage: DocumentExporter width height outputDirectory documents...
+ */
+public class DocumentExporter {
+
+	public static final int BACKGROUND = 0xFFFFFF;
+	public static final int FOREGROUND = 0x000000;
+
+	private DocumentExporter() {}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 4) {
+			System.err.println("Usage: DocumentExporter width height outputDirectory documents...");
+			System.exit(2);
+		}
+		int width = Integer.parseInt(args[0]);
+		int height = Integer.parseInt(args[1]);
+		var outputDirectory = Paths.get(args[2]);
+		var files = new ArrayList<Path>();
+		for (int i = 3; i < args.length; i++) {
+			files.add(Paths.get(args[i]));
+		}
+
+		var failures = exportAll(files, outputDirectory, width, height);
+		for (var failure : failures) {
+			System.err.println(failure.getMessage());
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * Renders each document to a PNG in the output directory, named after the document.
+	 * The documents are rendered in parallel, one thread per core.
+	 *
+	 * @return The errors for the documents that couldn't be exported. The rest are
+	 *         still written.
+	 */
+	public static List<IOException> exportAll(List<Path> files, Path outputDirectory, int width, int height) throws InterruptedException {
+		var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			var results = new ArrayList<Future<Path>>();
+			for (var file : files) {
+				results.add(executor.submit(()->export(file, outputDirectory.resolve(pngName(file)), width, height)));
+			}
+
+			var failures = new ArrayList<IOException>();
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					failures.add(new IOException("Unable to export " + files.get(i) + ": " + e.getCause(), e.getCause()));
+				}
+			}
+			return failures;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Renders one document to a PNG.
+	 */
+	public static Path export(Path file, Path output, int width, int height) throws IOException {
+		var image = render(read(file), width, height);
+		if (!ImageIO.write(image.getImage(), "png", output.toFile())) {
+			throw new IOException("No PNG writer is available.");
+		}
+		return output;
+	}
+
+	/**
+	 * Renders the whole document, scaled to fill the image.
+	 */
+	public static ImageRenderer render(Document document, int width, int height) {
+		var renderer = new ImageRenderer(width, height, BACKGROUND);
+		renderer.setForeground(FOREGROUND);
+		var projection = new ProjectionCache();
+		projection.setScale(width, height);
+		DocumentPainter.paint(renderer, document, projection, 0, 0, width, height, null, null);
+		return renderer;
+	}
+
+	private static Document read(Path file) throws IOException {
+		if (BinaryDocumentCodec.isBinary(file)) {
+			return BinaryDocumentCodec.read(file);
+		}
+		try (BufferedReader input = Files.newBufferedReader(file)) {
+			return DocumentCodec.read(input);
+		} catch (JsonParseException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private static String pngName(Path file) {
+		var name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return name + ".png";
+	}
+}
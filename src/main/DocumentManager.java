@@ -7,17 +7,23 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
-import actions.UndoAction;
 import main.Document.TemporaryResizeListener;
 
 public class DocumentManager {
@@ -41,6 +47,16 @@ public class DocumentManager {
 	// We can't change the selected file while iterating through selectionListeners.
 	private boolean currentFileLock;
 
+	private boolean incrementalSaving;
+	private boolean keepingUndoHistory;
+
+	// Files are read and written on this thread, one at a time, so saves to the same
+	// file happen in order.
+	private ExecutorService ioExecutor;
+	private Executor uiExecutor;
+	// Saves that are still being written.
+	private ConcurrentHashMap<Document, CompletableFuture<Void>> pendingSaves;
+
 	private DocumentManager() {
 		files = new ArrayList<>();
 		immutableFiles = Collections.unmodifiableList(files);
@@ -55,6 +71,17 @@ public class DocumentManager {
 		currentDocListeners = new ArrayList<>();
 
 		currentFileLock = false;
+		incrementalSaving = false;
+		keepingUndoHistory = false;
+
+		ioExecutor = Executors.newSingleThreadExecutor(runnable-> {
+			var thread = new Thread(runnable, "Document I/O");
+			// Closing a document waits for its save, so this doesn't need to keep the app alive.
+			thread.setDaemon(true);
+			return thread;
+		});
+		uiExecutor = Runnable::run;
+		pendingSaves = new ConcurrentHashMap<>();
 	}
 
 	// INVARIANT: This will never return null.
@@ -124,6 +151,7 @@ public class DocumentManager {
 				if (document.getFilePath() != null && Files.isSameFile(document.getFilePath(), file.toPath())) {
 					// Select that file instead of opening a new copy.
 					setCurrentDocument(document);
+					return;
 				}
 			} catch (IOException e) {
 				// TODO: Log a message
@@ -131,11 +159,74 @@ public class DocumentManager {
 			}
 		}
 
-		var gson = new Gson();
 		assert (file != null);
-		Document newDocument = null;
+		var newDocument = readDocument(file, instance.incrementalSaving, instance.keepingUndoHistory);
+
+		newDocument.setFile(file);
+		instance.files.add(newDocument);
+		instance.notifyCreationListeners(newDocument);
+		setCurrentDocument(newDocument);
+	}
+
+	/**
+	 * Reads the document on a background thread. Once it's read, it's added and selected
+	 * on the UI thread, the same as openDocument().
+	 * 
+	 * @return The new document, or the existing one if the file was already open.
+	 */
+	public static CompletableFuture<Document> openDocumentAsync(File file) {
+		assert (file != null);
+		for (var document : instance.files) {
+			try {
+				if (document.getFilePath() != null && Files.isSameFile(document.getFilePath(), file.toPath())) {
+					setCurrentDocument(document);
+					return CompletableFuture.completedFuture(document);
+				}
+			} catch (IOException e) {
+				// TODO: Log a message
+				continue;
+			}
+		}
+
+		boolean resumeJournal = instance.incrementalSaving;
+		boolean openHistory = instance.keepingUndoHistory;
+		return CompletableFuture.supplyAsync(()->readDocument(file, resumeJournal, openHistory), instance.ioExecutor).thenApplyAsync(newDocument-> {
+			newDocument.setFile(file);
+			instance.files.add(newDocument);
+			instance.notifyCreationListeners(newDocument);
+			setCurrentDocument(newDocument);
+			return newDocument;
+		}, instance.uiExecutor);
+	}
+
+	/**
+	 * Reads a document in either format, and applies its save journal if it has one.
+	 * 
+	 * @param resumeJournal If true, later saves append to the same journal.
+	 * @param openHistory   If true, the undo history kept next to the file is picked up.
+	 */
+	private static Document readDocument(File file, boolean resumeJournal, boolean openHistory) {
+		Document ret = null;
+		try {
+			if (BinaryDocumentCodec.isBinary(file.toPath())) {
+				ret = BinaryDocumentCodec.read(file.toPath());
+			} else {
+				ret = readJson(file);
+			}
+			SaveJournal.replay(ret, file.toPath(), resumeJournal);
+			if (openHistory) {
+				ret.getUndoStack().openHistory(ret, file.toPath());
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			throw new RuntimeException("IOException handler not yet written in openDocument of DocumentManager.", e);
+		}
+		return ret;
+	}
+
+	private static Document readJson(File file) {
 		try (var input = new BufferedReader(new FileReader(file))) {
-			newDocument = gson.fromJson(input, Document.class);
+			return DocumentCodec.read(input);
 		} catch (JsonIOException e1) {
 			// TODO Auto-generated catch block
 			throw new RuntimeException("JsonIOException handler not yet written in onOpen of UiBuilder.", e1);
@@ -149,11 +240,6 @@ public class DocumentManager {
 			// TODO Auto-generated catch block
 			throw new RuntimeException("IOException handler not yet written in onOpen of UiBuilder.", e2);
 		}
-
-		newDocument.setFile(file);
-		instance.files.add(newDocument);
-		instance.notifyCreationListeners(newDocument);
-		setCurrentDocument(newDocument);
 	}
 
 	/**
@@ -174,6 +260,8 @@ public class DocumentManager {
 				newDocument();
 			}
 		}
+		compactJournal(document);
+		document.getUndoStack().close();
 		instance.files.remove(document);
 		instance.notifyCloseListeners(document);
 		return true;
@@ -195,6 +283,8 @@ public class DocumentManager {
 				return false;
 			}
 			// Remove the file.
+			compactJournal(document);
+			document.getUndoStack().close();
 			instance.files.remove(0);
 
 			// If it was selected, select something else.
@@ -218,14 +308,25 @@ public class DocumentManager {
 	private static void saveDocument(Document document, Path outputFile) {
 		assert (document != null);
 		assert (outputFile != null);
+		waitForSave(document);
 
-		var gson = new Gson();
-		try (var output = new BufferedWriter(new FileWriter(outputFile.toFile()))) {
-			gson.toJson(document, output);
+		var historySave = instance.keepingUndoHistory ? document.getUndoStack().prepareSave(document, outputFile) : null;
+		try {
+			if (historySave != null) {
+				historySave.run();
+			}
+			prepareSave(document, outputFile, false).run();
+			if (historySave != null) {
+				historySave.commit();
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			throw new RuntimeException("IOException handler not yet written in saveDocument of DocumentManager.", e);
 			// return;
+		} finally {
+			if (historySave != null) {
+				document.getUndoStack().finishSave(historySave);
+			}
 		}
 
 		// Saved successfully.
@@ -233,6 +334,188 @@ public class DocumentManager {
 		instance.notifySaveListeners(document);
 	}
 
+	/**
+	 * Saves the document on a background thread. The document is captured before this
+	 * returns, so it can keep being edited while the file is written. The save listeners
+	 * are called on the UI thread once the file has been written.
+	 */
+	public static CompletableFuture<Void> saveDocumentAsync(Document document) {
+		assert (document != null);
+		var outputFile = document.getFilePath();
+		assert (outputFile != null);
+
+		UndoStack.SaveTask historySave = null;
+		if (instance.keepingUndoHistory) {
+			// The history can only be saved once at a time.
+			waitForSave(document);
+			historySave = document.getUndoStack().prepareSave(document, outputFile);
+		}
+		var task = prepareSave(document, outputFile, true);
+		// Any edits made while the file is being written will set this again.
+		document.setHasUnsavedChanges(false);
+		var savingHistory = historySave;
+		var written = CompletableFuture.runAsync(()-> {
+			try {
+				if (savingHistory != null) {
+					savingHistory.run();
+				}
+				task.run();
+				if (savingHistory != null) {
+					savingHistory.commit();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, instance.ioExecutor);
+		instance.pendingSaves.put(document, written);
+		return written.whenCompleteAsync((result, error)-> {
+			instance.pendingSaves.remove(document, written);
+			if (savingHistory != null) {
+				document.getUndoStack().finishSave(savingHistory);
+			}
+			if (error == null) {
+				instance.notifySaveListeners(document);
+			} else {
+				// Whatever made it to the disk can't be trusted.
+				document.getJournal().invalidate();
+				document.setHasUnsavedChanges(true);
+			}
+		}, instance.uiExecutor);
+	}
+
+	/**
+	 * Blocks until any background save of the document has finished.
+	 */
+	private static void waitForSave(Document document) {
+		var pending = instance.pendingSaves.remove(document);
+		if (pending != null) {
+			try {
+				pending.join();
+			} catch (CompletionException e) {
+				// Already handled by saveDocumentAsync.
+			}
+		}
+	}
+
+	/**
+	 * Does the part of saving that has to happen on the UI thread: working out what
+	 * needs to be written.
+	 * 
+	 * @param snapshot If true, the returned task doesn't touch the document, so it can
+	 *                 run on another thread.
+	 * @return The part of saving that does the I/O.
+	 */
+	private static IoTask prepareSave(Document document, Path outputFile, boolean snapshot) {
+		var journal = document.getJournal();
+		if (journal.canAppend(outputFile)) {
+			// Only the changes since the last save are written.
+			var changes = journal.takePending();
+			return ()->journal.append(outputFile, changes);
+		}
+		var rectangles = snapshot ? document.getRectangles().snapshot() : document.getRectangles();
+		var format = document.getFileFormat();
+		journal.beginRebase(outputFile, instance.incrementalSaving);
+		return ()-> {
+			writeDocument(rectangles, format, outputFile);
+			journal.finishRebase(outputFile);
+		};
+	}
+
+	private static void writeDocument(RectangleStore rectangles, Document.FileFormat format, Path outputFile) throws IOException {
+		if (format == Document.FileFormat.Binary) {
+			BinaryDocumentCodec.write(rectangles, outputFile);
+		} else {
+			try (var output = new BufferedWriter(new FileWriter(outputFile.toFile()))) {
+				DocumentCodec.write(rectangles, output);
+			}
+		}
+	}
+
+	/**
+	 * Folds a closing document's save journal back into its main file. If that fails, the
+	 * file and journal are left as they were, and the journal is replayed the next time
+	 * the file is opened, so the close carries on either way.
+	 */
+	private static void compactJournal(Document document) {
+		waitForSave(document);
+		var journal = document.getJournal();
+		if (!journal.hasEntries()) {
+			return;
+		}
+		var file = document.getFilePath();
+		var compacted = file.resolveSibling(file.getFileName() + ".compacting");
+		try {
+			// Written alongside and moved into place, so the journal never ends up applying
+			// to a half-written file.
+			if (document.hasUnsavedChanges()) {
+				// Those changes are being discarded, so the saved version has to come from disk.
+				var saved = readDocument(file.toFile(), false, false);
+				writeDocument(saved.getRectangles(), saved.getFileFormat(), compacted);
+			} else {
+				writeDocument(document.getRectangles(), document.getFileFormat(), compacted);
+			}
+			Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// Once the file is replaced, the journal no longer matches it, so it's ignored
+			// even if it can't be deleted.
+			journal.beginRebase(file, false);
+			journal.finishRebase(file);
+			// The contents are the same as the last save, so its undo history still applies.
+			document.getUndoStack().restampHistory(file);
+		} catch (IOException | RuntimeException e) {
+			// readDocument() reports I/O failures as RuntimeExceptions. Either way the
+			// journal still holds the changes.
+			journal.invalidate();
+		} finally {
+			try {
+				Files.deleteIfExists(compacted);
+			} catch (IOException e) {
+				// Ignore it.
+			}
+		}
+	}
+
+	/**
+	 * Sets how results from background threads get back to the UI thread. UiBuilder
+	 * uses Display.asyncExec; by default they're run on the background thread.
+	 */
+	public static void setUiExecutor(Executor executor) {
+		assert (executor != null);
+		instance.uiExecutor = executor;
+	}
+
+	/**
+	 * When enabled, saving a document that was already saved appends the changes since
+	 * then to a SaveJournal instead of rewriting the whole file. The journal is folded
+	 * back into the file when the document is closed, or once it gets too big.
+	 */
+	public static void setIncrementalSaving(boolean value) {
+		instance.incrementalSaving = value;
+		if (!value) {
+			// Make the next save of every document a full one.
+			for (var document : instance.files) {
+				document.getJournal().invalidate();
+			}
+		}
+	}
+
+	public static boolean isIncrementalSaving() {
+		return instance.incrementalSaving;
+	}
+
+	/**
+	 * When enabled, saving a document also saves its undo history to a sidecar file (the
+	 * document's path + UndoHistoryFile.EXTENSION), and opening a document picks up the
+	 * history in its sidecar. From then on, actions are written to the sidecar as
+	 * they're pushed.
+	 */
+	public static void setKeepingUndoHistory(boolean value) {
+		instance.keepingUndoHistory = value;
+	}
+
+	public static boolean isKeepingUndoHistory() {
+		return instance.keepingUndoHistory;
+	}
+
 	public static Consumer<Document> addSelectionListener(Consumer<Document> listener) {
 		instance.selectionListeners.add(listener);
 		return listener;
@@ -314,13 +597,20 @@ public class DocumentManager {
 		instance.shouldCloseDocument = predicate;
 	}
 
+	/**
+	 * The part of a save that runs on the I/O thread.
+	 */
+	private static interface IoTask {
+		void run() throws IOException;
+	}
+
 	public static CurrentDocumentListener addCurrentDocumentSelectionListener(Consumer<Rectangle> listener) {
 		var newListener = CurrentDocumentListener.selectionListener(listener);
 		instance.currentDocListeners.add(newListener);
 		return newListener;
 	}
 
-	public static CurrentDocumentListener addCurrentDocumentUndoActionListener(Consumer<UndoAction> listener) {
+	public static CurrentDocumentListener addCurrentDocumentUndoActionListener(Consumer<UndoEvent> listener) {
 		var newListener = CurrentDocumentListener.undoListener(listener);
 		instance.currentDocListeners.add(newListener);
 		return newListener;
@@ -366,7 +656,7 @@ public class DocumentManager {
 			return ret;
 		}
 
-		protected static CurrentDocumentListener undoListener(Consumer<UndoAction> listener) {
+		protected static CurrentDocumentListener undoListener(Consumer<UndoEvent> listener) {
 			var ret = new CurrentDocumentListener(getCurrentDocument(), listener);
 			ret.isUndoListener = true;
 			ret.attach();
@@ -389,7 +679,7 @@ public class DocumentManager {
 				attachedDocument.addTemporaryResizeListener((TemporaryResizeListener) listener);
 			}
 			if (isUndoListener) {
-				attachedDocument.getUndoStack().addListener((Consumer<UndoAction>) listener);
+				attachedDocument.getUndoStack().addListener((Consumer<UndoEvent>) listener);
 			}
 		}
 
@@ -402,7 +692,7 @@ public class DocumentManager {
 				attachedDocument.removeTemporaryResizeListener((TemporaryResizeListener) listener);
 			}
 			if (isUndoListener) {
-				attachedDocument.getUndoStack().removeListener((Consumer<UndoAction>) listener);
+				attachedDocument.getUndoStack().removeListener((Consumer<UndoEvent>) listener);
 			}
 		}
 
@@ -0,0 +1,120 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Draws a document's rectangles onto a Renderer. The editor paints its static layer
+ * with it, and DocumentExporter renders documents without a display.
+ */
+public class DocumentPainter {
+
+	private DocumentPainter() {}
+
+	/**
+	 * Outlines every rectangle that's visible in a width by height pixel viewport.
+	 *
+	 * @param projection Scales the document to pixels. Its scale sets the zoom.
+	 * @param panX       The ratio coordinate at the viewport's left edge.
+	 * @param panY       The ratio coordinate at the viewport's top edge.
+	 * @param skip       A rectangle to leave out, or null.
+	 * @param metrics    Counts the rectangles visited and drawn, or null.
+	 */
+	public static void paint(Renderer renderer, Document document, ProjectionCache projection, double panX, double panY, int width, int height, Rectangle skip,
+		PaintMetrics metrics) {
+		double viewWidth = width / projection.getScaleX();
+		double viewHeight = height / projection.getScaleY();
+		paint(renderer, document, projection, panX, panY, width, height, panX, panY, viewWidth, viewHeight, skip, metrics);
+	}
+
+	/**
+	 * Like paint(), but only visits the rectangles that touch a pixel region of the
+	 * viewport. They're still drawn in full, so the renderer should clip to the region.
+	 */
+	public static void paintRegion(Renderer renderer, Document document, ProjectionCache projection, double panX, double panY, int width, int height,
+		int regionX, int regionY, int regionWidth, int regionHeight, Rectangle skip, PaintMetrics metrics) {
+		// Pad by a pixel, for rectangles that only reach the region through rounding.
+		double queryX = panX + (regionX - 1) / projection.getScaleX();
+		double queryY = panY + (regionY - 1) / projection.getScaleY();
+		double queryWidth = (regionWidth + 2) / projection.getScaleX();
+		double queryHeight = (regionHeight + 2) / projection.getScaleY();
+		paint(renderer, document, projection, panX, panY, width, height, queryX, queryY, queryWidth, queryHeight, skip, metrics);
+	}
+
+	private static void paint(Renderer renderer, Document document, ProjectionCache projection, double panX, double panY, int width, int height,
+		double queryX, double queryY, double queryWidth, double queryHeight, Rectangle skip, PaintMetrics metrics) {
+		int originX = projection.scaleX(panX);
+		int originY = projection.scaleY(panY);
+		// Rectangles smaller than a pixel all draw as a single point. Collect those
+		// and draw each covered pixel once. Only the pixels that are hit are kept, so
+		// painting a small region of a big viewport doesn't cost a bitmap of all of it.
+		var points = new PointList();
+		// Only the lambda can count outlines, so it needs somewhere mutable to put them.
+		int[] counts = new int[2];
+		document.forEachRectangleIn(queryX, queryY, queryWidth, queryHeight, rect-> {
+			counts[0] += 1;
+			if (rect == skip) {
+				return;
+			}
+			int index = projection.project(rect);
+			int x = projection.getX(index) - originX;
+			int y = projection.getY(index) - originY;
+			int rectWidth = projection.getWidth(index);
+			int rectHeight = projection.getHeight(index);
+			if (rectWidth == 0 && rectHeight == 0) {
+				if (x >= 0 && x < width && y >= 0 && y < height) {
+					points.add((long) y * width + x);
+				}
+				return;
+			}
+
+			// Manual correction: if the left or bottom edges are on the first
+			// pixel after the viewport ends, push them back onto it.
+			if (x + rectWidth == width) {
+				rectWidth -= 1;
+			}
+			if (y + rectHeight == height) {
+				rectHeight -= 1;
+			}
+			renderer.drawRectangle(x, y, rectWidth, rectHeight);
+			counts[1] += 1;
+		});
+		points.sort();
+		for (int i = 0; i < points.size; i++) {
+			long point = points.points[i];
+			if (i > 0 && point == points.points[i - 1]) {
+				continue;
+			}
+			renderer.drawPoint((int) (point % width), (int) (point / width));
+			counts[1] += 1;
+		}
+		if (metrics != null) {
+			metrics.addVisited(counts[0]);
+			metrics.addDrawn(counts[1]);
+		}
+	}
+
+	/**
+	 * A growable list of pixels, each packed as y * width + x.
+	 */
+	private static class PointList {
+		private long[] points;
+		private int size;
+
+		public PointList() {
+			points = new long[16];
+			size = 0;
+		}
+
+		public void add(long point) {
+			if (size == points.length) {
+				points = Arrays.copyOf(points, size * 2);
+			}
+			points[size] = point;
+			size += 1;
+		}
+
+		public void sort() {
+			Arrays.sort(points, 0, size);
+		}
+	}
+}
@@ -9,12 +9,16 @@ import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Cursor;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.TabFolder;
 import org.eclipse.swt.widgets.TabItem;
 import actions.ResizeRectangleAction;
 import main.Document.TemporaryResizeListener;
+import main.PaintMetrics.Trigger;
 import main.UiBuilder.ToolType;
 
 public class Editor implements PaintListener, MouseListener, MouseMoveListener, TemporaryResizeListener {
@@ -26,8 +30,23 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 	private static final int HANDLE_SIZE = 8;
 	private static final int HANDLE_SPACING = 2;
 
+	// Each wheel notch or zoom command scales the view by this much.
+	private static final double ZOOM_STEP = 1.25;
+	private static final double MIN_ZOOM = 0.25;
+	private static final double MAX_ZOOM = 1024;
+
+	// How close an edge has to get to another rectangle's to snap to it, in pixels.
+	private static final int SNAP_DISTANCE = 6;
+
+	// Past this many changes in one undo event, redrawing the whole static layer is
+	// cheaper than patching it.
+	private static final int MAX_PATCHED_CHANGES = 64;
+
+	// All from ResourcePool, and released when the canvas is disposed.
+	private final Color WHITE;
 	private final Color BLACK;
 	private final Color GRAY;
+	private final Color GUIDE;
 
 	private int mouseDownX;
 	private int mouseDownY;
@@ -39,6 +58,15 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 	private boolean movingRect;
 	private boolean makingNewRect;
 	private boolean resizingRect;
+	private boolean panning;
+
+	// The view transform. A ratio coordinate c is drawn at (c - pan) * zoom * canvas
+	// size, so zoom 1 with no pan shows the whole 0..1 space.
+	private double zoom;
+	private double panX;
+	private double panY;
+	private double panDownX;
+	private double panDownY;
 
 	private Document document;
 	private TabItem tab;
@@ -65,6 +93,39 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 
 	private Rectangle heldHandle;
 
+	// Native calls are slow, so the size is only read when the canvas is resized.
+	private Point canvasSize;
+	private ProjectionCache projection;
+
+	// Mouse moves during a drag only record the position; this applies the latest one
+	// at most once per frame.
+	private FrameCoalescer dragUpdates;
+
+	private PaintMetrics paintMetrics;
+	private boolean showPaintMetrics;
+	// Where the metrics overlay was last drawn, or null.
+	private Rectangle metricsArea;
+
+	// Built when a move or resize starts, and dropped when it ends.
+	private SnapEngine snapEngine;
+	private boolean snapToEdges;
+	private double gridSize;
+	// The ratio coordinates of the snap guides, or NaN when there's no guide.
+	private double guideX;
+	private double guideY;
+
+	// The canvas areas that were last painted for the temporary resize (handles
+	// included) and for the outline of a new rectangle. Drags only redraw these and the
+	// areas they move to. Null when nothing is showing.
+	private Rectangle liveArea;
+	private Rectangle newRectArea;
+
+	// Every rectangle except the selected one, drawn once and blitted on each paint.
+	// Null when the document, the selection or the canvas size has changed since.
+	private Image staticLayer;
+	// The selected rectangle the static layer was drawn without.
+	private main.Rectangle staticLayerSelection;
+
 	public Editor(TabFolder parent, Document document) {
 		assert (document != null);
 		this.document = document;
@@ -72,16 +133,38 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 		tab.setData(TAB_ITEM_DATA_NAME, this);
 		makingNewRect = false;
 		resizingRect = false;
+		panning = false;
 		heldHandle = null;
+		zoom = 1;
+		panX = 0;
+		panY = 0;
 
 		tab.setText(document.getFileName());
-		document.getUndoStack().addListener(action->updateSavedIndicators());
+		document.getUndoStack().addListener(event->updateSavedIndicators());
 
-		canvas = new Canvas(parent, SWT.BORDER);
+		// The static layer covers every pixel, so there's no need to erase first.
+		canvas = new Canvas(parent, SWT.BORDER | SWT.NO_BACKGROUND);
 		tab.setControl(canvas);
-
-		var actionListener = document.getUndoStack().addListener(action->canvas.redraw());
-		var selectionListener = document.addSelectionListener(rect->canvas.redraw());
+		WHITE = ResourcePool.acquireColor(255, 255, 255);
+		BLACK = ResourcePool.acquireColor(0, 0, 0);
+		GRAY = ResourcePool.acquireColor(150, 150, 150);
+		GUIDE = ResourcePool.acquireColor(0, 120, 215);
+		canvasSize = canvas.getSize();
+		projection = new ProjectionCache();
+		updateScale();
+		dragUpdates = new FrameCoalescer(canvas.getDisplay(), this::applyDrag);
+		paintMetrics = new PaintMetrics();
+		showPaintMetrics = false;
+		metricsArea = null;
+		snapEngine = null;
+		snapToEdges = true;
+		gridSize = 0;
+		guideX = Double.NaN;
+		guideY = Double.NaN;
+		staticLayerSelection = null;
+
+		var actionListener = document.getUndoStack().addListener(this::undoApplied);
+		var selectionListener = document.addSelectionListener(rect->invalidateStaticLayer(Trigger.Selection));
 		var tempResizeListener = document.addTemporaryResizeListener(this);
 		var saveListener = DocumentManager.addSaveListener(savedDoc-> {
 			if (savedDoc == document) {
@@ -93,19 +176,33 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			document.getUndoStack().removeListener(actionListener);
 			document.removeSelectionListener(selectionListener);
 			document.removeTemporaryResizeListener(tempResizeListener);
+			dragUpdates.cancel();
 			DocumentManager.removeSaveListener(saveListener);
 		});
 
 		canvas.addMouseListener(this);
 		canvas.addMouseMoveListener(this);
 		canvas.addPaintListener(this);
+		canvas.addListener(SWT.Resize, e-> {
+			canvasSize = canvas.getSize();
+			updateScale();
+			invalidateStaticLayer(Trigger.View);
+		});
+		canvas.addListener(SWT.MouseVerticalWheel, e->zoomAt(e.x, e.y, e.count > 0 ? 1 : -1, Trigger.Mouse));
+		canvas.addDisposeListener(e-> {
+			if (staticLayer != null) {
+				staticLayer.dispose();
+				staticLayer = null;
+			}
+			ResourcePool.releaseColor(WHITE);
+			ResourcePool.releaseColor(BLACK);
+			ResourcePool.releaseColor(GRAY);
+			ResourcePool.releaseColor(GUIDE);
+		});
 
-		canvas.setBackground(new Color(tab.getDisplay(), 255, 255, 255));
+		canvas.setBackground(WHITE);
 		currentTool = ToolType.Place;
 
-		BLACK = new Color(tab.getDisplay(), 0, 0, 0);
-		GRAY = new Color(tab.getDisplay(), 150, 150, 150);
-
 		// Setup the cursor icons for each handle.
 		handleNE = new Rectangle(-1, -1, 0, 0);
 		handleNW = new Rectangle(-1, -1, 0, 0);
@@ -160,42 +257,43 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 	public void paintControl(PaintEvent event) {
 		updateHandles();
 		var context = event.gc;
+		var size = canvasSize;
+		if (size.x == 0 || size.y == 0) {
+			return;
+		}
+		paintMetrics.beginPaint();
+		if (staticLayer == null) {
+			staticLayer = drawStaticLayer(size);
+		}
+
+		// Only copy the damaged area of the layer; the rest of the canvas is unchanged.
+		var damaged = new Rectangle(event.x, event.y, event.width, event.height).intersection(staticLayer.getBounds());
+		if (!damaged.isEmpty()) {
+			context.drawImage(staticLayer, damaged.x, damaged.y, damaged.width, damaged.height, damaged.x, damaged.y, damaged.width, damaged.height);
+		}
+
 		context.setForeground(BLACK);
-		var size = canvas.getSize();
 		var selected = document.getSelectedRectangle();
-		for (var rect : document.getRectangles()) {
-			double rectX = rect.x;
-			double rectY = rect.y;
-			double rectWidth = rect.width;
-			double rectHeight = rect.height;
-			if (document.hasTempResize() && selected == rect) {
-				rectX = document.getTempX();
-				rectY = document.getTempY();
-				rectWidth = document.getTempWidth();
-				rectHeight = document.getTempHeight();
-
-				// The temp dimensions might not be normalized.
-				rectX = Math.min(rectX, rectX + rectWidth);
-				rectY = Math.min(rectY, rectY + rectHeight);
-				rectWidth = Math.abs(rectWidth);
-				rectHeight = Math.abs(rectHeight);
-			}
-			int scaledX = (int) Math.round(rectX * size.x);
-			int scaledY = (int) Math.round(rectY * size.y);
-			int scaledWidth = (int) Math.round(rectWidth * size.x);
-			int scaledHeight = (int) Math.round(rectHeight * size.y);
-
-			// Manual correction: if the left or bottom edges are on the first
-			// pixel after the canvas ends, push them back onto the canvas.
-			if (scaledX + scaledWidth == size.x) {
-				scaledWidth -= 1;
-			}
-			if (scaledY + scaledHeight == size.y) {
-				scaledHeight -= 1;
-			}
+		if (document.hasTempResize()) {
+			context.drawRectangle(toOutline(project(document.getTempX(), document.getTempY(), document.getTempWidth(), document.getTempHeight())));
+			paintMetrics.addDrawn(1);
+		} else if (selected != null) {
+			context.drawRectangle(toOutline(project(selected)));
+			paintMetrics.addDrawn(1);
+		}
 
-			context.drawRectangle(scaledX, scaledY, scaledWidth, scaledHeight);
+		context.setForeground(GUIDE);
+		if (!Double.isNaN(guideX)) {
+			int x = toCanvasX(guideX);
+			context.drawLine(x, 0, x, size.y);
+			paintMetrics.addDrawn(1);
+		}
+		if (!Double.isNaN(guideY)) {
+			int y = toCanvasY(guideY);
+			context.drawLine(0, y, size.x, y);
+			paintMetrics.addDrawn(1);
 		}
+		context.setForeground(BLACK);
 
 		if (makingNewRect && currentTool == ToolType.Place) {
 			int width = currentMouseX - mouseDownX;
@@ -208,6 +306,7 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			height = Math.abs(height);
 
 			context.drawRectangle(x, y, width, height);
+			paintMetrics.addDrawn(1);
 		}
 
 		if (selected != null) {
@@ -223,6 +322,308 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			context.drawRectangle(visibleHandleNE);
 			context.drawRectangle(visibleHandleSW);
 			context.drawRectangle(visibleHandleSE);
+			paintMetrics.addDrawn(4);
+		}
+
+		if (showPaintMetrics) {
+			// Shows the figures from the paint before this one.
+			var text = paintMetrics.toString();
+			var extent = context.textExtent(text);
+			context.setBackground(canvas.getBackground());
+			context.setForeground(BLACK);
+			context.drawText(text, 4, 4);
+			metricsArea = new Rectangle(4, 4, extent.x, extent.y);
+		}
+		paintMetrics.endPaint();
+	}
+
+	/**
+	 * Draws every visible rectangle except the selected one onto a new image the size of
+	 * the canvas.
+	 */
+	private Image drawStaticLayer(Point size) {
+		var ret = new Image(canvas.getDisplay(), size.x, size.y);
+		var context = new GC(ret);
+		try {
+			context.setBackground(canvas.getBackground());
+			context.fillRectangle(0, 0, size.x, size.y);
+			context.setForeground(BLACK);
+
+			staticLayerSelection = document.getSelectedRectangle();
+			DocumentPainter.paint(new GCRenderer(context), document, projection, panX, panY, size.x, size.y, staticLayerSelection, paintMetrics);
+		} finally {
+			context.dispose();
+		}
+		return ret;
+	}
+
+	/**
+	 * Patches the static layer where the event's rectangles were and are now, rather
+	 * than throwing the whole layer away.
+	 */
+	private void undoApplied(UndoEvent event) {
+		var changes = event.getChanges();
+		// Undoing a removal selects the rectangle again without telling the selection
+		// listeners, and the layer must leave out whatever is selected.
+		if (staticLayer == null || changes.size() > MAX_PATCHED_CHANGES || document.getSelectedRectangle() != staticLayerSelection) {
+			projection.invalidate();
+			invalidateStaticLayer(Trigger.Undo);
+			return;
+		}
+
+		Rectangle damaged = null;
+		for (var change : changes) {
+			if (change.kind == UndoEvent.Kind.Renamed) {
+				// Names aren't drawn.
+				continue;
+			}
+			projection.invalidate(change.rectangle);
+			// The selection area also covers the handles, in case the rectangle is selected.
+			var oldArea = selectionArea(project(change.oldX, change.oldY, change.oldWidth, change.oldHeight));
+			var newArea = selectionArea(project(change.newX, change.newY, change.newWidth, change.newHeight));
+			var area = oldArea.union(newArea);
+			damaged = damaged == null ? area : damaged.union(area);
+		}
+		if (damaged == null) {
+			return;
+		}
+		damaged = damaged.intersection(staticLayer.getBounds());
+		if (damaged.isEmpty()) {
+			return;
+		}
+		repaintStaticLayer(damaged);
+		redrawMoved(null, damaged, Trigger.Undo);
+	}
+
+	/**
+	 * Redraws part of the static layer in place.
+	 */
+	private void repaintStaticLayer(Rectangle area) {
+		var bounds = staticLayer.getBounds();
+		var context = new GC(staticLayer);
+		try {
+			context.setClipping(area);
+			context.setBackground(canvas.getBackground());
+			context.fillRectangle(area);
+			context.setForeground(BLACK);
+
+			DocumentPainter.paintRegion(new GCRenderer(context), document, projection, panX, panY, bounds.width, bounds.height, area.x, area.y, area.width,
+				area.height, staticLayerSelection, null);
+		} finally {
+			context.dispose();
+		}
+	}
+
+	/**
+	 * Throws away the static layer and repaints the canvas from a new one.
+	 */
+	private void invalidateStaticLayer(Trigger trigger) {
+		if (staticLayer != null) {
+			staticLayer.dispose();
+			staticLayer = null;
+		}
+		paintMetrics.recordRedraw(trigger);
+		canvas.redraw();
+	}
+
+	/**
+	 * Zooms the view in or out by a number of steps, keeping the given canvas point
+	 * over the same spot in the document.
+	 */
+	private void zoomAt(int x, int y, int steps, Trigger trigger) {
+		if (canvasSize.x == 0 || canvasSize.y == 0) {
+			return;
+		}
+		double ratioX = toRatioX(x);
+		double ratioY = toRatioY(y);
+		zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * Math.pow(ZOOM_STEP, steps)));
+		updateScale();
+		panX = ratioX - x / projection.getScaleX();
+		panY = ratioY - y / projection.getScaleY();
+		invalidateStaticLayer(trigger);
+	}
+
+	public void zoomIn() {
+		zoomAt(canvasSize.x / 2, canvasSize.y / 2, 1, Trigger.View);
+	}
+
+	public void zoomOut() {
+		zoomAt(canvasSize.x / 2, canvasSize.y / 2, -1, Trigger.View);
+	}
+
+	/**
+	 * Goes back to showing the whole document.
+	 */
+	public void resetView() {
+		zoom = 1;
+		panX = 0;
+		panY = 0;
+		updateScale();
+		invalidateStaticLayer(Trigger.View);
+	}
+
+	public double getZoom() {
+		return zoom;
+	}
+
+	public boolean isSnappingToEdges() {
+		return snapToEdges;
+	}
+
+	/**
+	 * Sets whether moves and resizes snap to the edges and centers of other rectangles.
+	 */
+	public void setSnapToEdges(boolean value) {
+		snapToEdges = value;
+	}
+
+	public double getGridSize() {
+		return gridSize;
+	}
+
+	/**
+	 * Sets the spacing of the grid that moves and resizes snap to, as a ratio. 0 turns
+	 * the grid off. Edges take priority over the grid.
+	 */
+	public void setGridSize(double value) {
+		assert (value >= 0);
+		gridSize = value;
+	}
+
+	public PaintMetrics getPaintMetrics() {
+		return paintMetrics;
+	}
+
+	public boolean isShowingPaintMetrics() {
+		return showPaintMetrics;
+	}
+
+	/**
+	 * Shows or hides the paint metrics in the canvas's top-left corner.
+	 */
+	public void setShowPaintMetrics(boolean value) {
+		showPaintMetrics = value;
+		metricsArea = null;
+		paintMetrics.recordRedraw(Trigger.View);
+		canvas.redraw();
+	}
+
+	private void updateScale() {
+		projection.setScale(zoom * canvasSize.x, zoom * canvasSize.y);
+	}
+
+	private int toCanvasX(double x) {
+		return projection.scaleX(x) - projection.scaleX(panX);
+	}
+
+	private int toCanvasY(double y) {
+		return projection.scaleY(y) - projection.scaleY(panY);
+	}
+
+	private double toRatioX(int x) {
+		return x / projection.getScaleX() + panX;
+	}
+
+	private double toRatioY(int y) {
+		return y / projection.getScaleY() + panY;
+	}
+
+	/**
+	 * Converts bounds to canvas coordinates. The bounds might not be normalized.
+	 */
+	private Rectangle project(double x, double y, double width, double height) {
+		x = Math.min(x, x + width);
+		y = Math.min(y, y + height);
+		width = Math.abs(width);
+		height = Math.abs(height);
+		return new Rectangle(toCanvasX(x), toCanvasY(y), projection.scaleX(width), projection.scaleY(height));
+	}
+
+	/**
+	 * Converts a rectangle to canvas coordinates through the projection cache.
+	 */
+	private Rectangle project(main.Rectangle rect) {
+		int index = projection.project(rect);
+		int x = projection.getX(index) - projection.scaleX(panX);
+		int y = projection.getY(index) - projection.scaleY(panY);
+		return new Rectangle(x, y, projection.getWidth(index), projection.getHeight(index));
+	}
+
+	/**
+	 * @return The outline drawn for bounds in canvas coordinates.
+	 */
+	private Rectangle toOutline(Rectangle bounds) {
+		// Manual correction: if the left or bottom edges are on the first
+		// pixel after the canvas ends, push them back onto the canvas.
+		if (bounds.x + bounds.width == canvasSize.x) {
+			bounds.width -= 1;
+		}
+		if (bounds.y + bounds.height == canvasSize.y) {
+			bounds.height -= 1;
+		}
+		return bounds;
+	}
+
+	/**
+	 * @return The canvas area covered by a selected rectangle's outline and visible
+	 *         handles.
+	 */
+	private static Rectangle selectionArea(Rectangle bounds) {
+		// The handles sit outside the outline. The extra pixel covers drawRectangle
+		// drawing one pixel past the width and height.
+		int margin = HANDLE_SPACING + HANDLE_SIZE + 1;
+		return new Rectangle(bounds.x - margin, bounds.y - margin, bounds.width + 2 * margin + 1, bounds.height + 2 * margin + 1);
+	}
+
+	/**
+	 * @return The canvas area covered by the outline of the rectangle being placed.
+	 */
+	private Rectangle newRectArea() {
+		int x = Math.min(mouseDownX, currentMouseX);
+		int y = Math.min(mouseDownY, currentMouseY);
+		return new Rectangle(x, y, Math.abs(currentMouseX - mouseDownX) + 1, Math.abs(currentMouseY - mouseDownY) + 1);
+	}
+
+	/**
+	 * Redraws the union of the area that was painted and the area that will be.
+	 */
+	private void redrawMoved(Rectangle oldArea, Rectangle newArea, Trigger trigger) {
+		var area = oldArea == null ? newArea : oldArea.union(newArea);
+		paintMetrics.recordRedraw(trigger);
+		canvas.redraw(area.x, area.y, area.width, area.height, false);
+		if (showPaintMetrics && metricsArea != null) {
+			// Keep the overlay's figures current.
+			canvas.redraw(metricsArea.x, metricsArea.y, metricsArea.width, metricsArea.height, false);
+		}
+	}
+
+	/**
+	 * Moves the snap guides, redrawing only the strips they leave and enter.
+	 */
+	private void setGuides(double x, double y) {
+		if (Double.compare(x, guideX) != 0) {
+			redrawGuideX(guideX);
+			guideX = x;
+			redrawGuideX(guideX);
+		}
+		if (Double.compare(y, guideY) != 0) {
+			redrawGuideY(guideY);
+			guideY = y;
+			redrawGuideY(guideY);
+		}
+	}
+
+	private void redrawGuideX(double x) {
+		if (!Double.isNaN(x)) {
+			paintMetrics.recordRedraw(Trigger.TempResize);
+			canvas.redraw(toCanvasX(x), 0, 1, canvasSize.y, false);
+		}
+	}
+
+	private void redrawGuideY(double y) {
+		if (!Double.isNaN(y)) {
+			paintMetrics.recordRedraw(Trigger.TempResize);
+			canvas.redraw(0, toCanvasY(y), canvasSize.x, 1, false);
 		}
 	}
 
@@ -242,31 +643,18 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			return;
 		}
 
-		var size = canvas.getSize();
-
-		// Check if a resize event is happening.
-		double rectX = selected.x;
-		double rectY = selected.y;
-		double rectWidth = selected.width;
-		double rectHeight = selected.height;
+		// Convert to canvas coordinates, using the temp size if a resize event is
+		// happening.
+		Rectangle bounds;
 		if (document.hasTempResize()) {
-			rectX = document.getTempX();
-			rectY = document.getTempY();
-			rectWidth = document.getTempWidth();
-			rectHeight = document.getTempHeight();
-
-			// Coordinates from temp resize might not be normalized.
-			rectX = Math.min(rectX, rectX + rectWidth);
-			rectY = Math.min(rectY, rectY + rectHeight);
-			rectWidth = Math.abs(rectWidth);
-			rectHeight = Math.abs(rectHeight);
+			bounds = project(document.getTempX(), document.getTempY(), document.getTempWidth(), document.getTempHeight());
+		} else {
+			bounds = project(selected);
 		}
-
-		// Convert to canvas coordinates.
-		int roundedX = (int) Math.round(rectX * size.x);
-		int roundedY = (int) Math.round(rectY * size.y);
-		int roundedWidth = (int) Math.round(rectWidth * size.x);
-		int roundedHeight = (int) Math.round(rectHeight * size.y);
+		int roundedX = bounds.x;
+		int roundedY = bounds.y;
+		int roundedWidth = bounds.width;
+		int roundedHeight = bounds.height;
 
 		// All handles have the same dimensions unless modified below.
 		for (var handle : allHandles) {
@@ -336,7 +724,12 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 	@Override
 	public void mouseMove(MouseEvent event) {
 		var selected = document.getSelectedRectangle();
-		if (makingNewRect) {
+		if (panning) {
+			currentMouseX = event.x;
+			currentMouseY = event.y;
+			dragUpdates.request();
+
+		} else if (makingNewRect) {
 			// Determine which cursor to use.
 			int cursorType;
 			if (currentMouseX >= mouseDownX) {
@@ -357,37 +750,15 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			// Save the current mouse position.
 			currentMouseX = event.x;
 			currentMouseY = event.y;
-			canvas.redraw();
+			dragUpdates.request();
 
-		} else if (resizingRect) {
+		} else if (resizingRect || movingRect) {
 			// Save the current mouse position.
 			currentMouseX = event.x;
 			currentMouseY = event.y;
-
-			// Calculate the new resize coordinates.
-			updateTempResize();
+			dragUpdates.request();
 
 			// Don't change the cursor icon.
-			canvas.redraw();
-
-		} else if (movingRect) {
-			// Save the current mouse position.
-			currentMouseX = event.x;
-			currentMouseY = event.y;
-
-			var size = canvas.getSize();
-			double deltaX = (currentMouseX - mouseDownX) / (double) size.x;
-			double deltaY = (currentMouseY - mouseDownY) / (double) size.y;
-
-			double newX = selected.x + deltaX;
-			double newY = selected.y + deltaY;
-
-			newX = round(newX);
-			newY = round(newY);
-			document.setTempSize(this, newX, newY, selected.width, selected.height);
-
-			// Don't change the cursor icon.
-			canvas.redraw();
 		} else if (selected != null) {
 			boolean cursorSet = false;
 
@@ -403,9 +774,9 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			}
 
 			// If not over a handle, check if we're over the selected rectangle's interior.
-			var size = canvas.getSize();
-			if (!cursorSet && event.x >= selected.x * size.x && event.x < (selected.x + selected.width) * size.x) {
-				if (event.y >= selected.y * size.y && event.y < (selected.y + selected.height) * size.y) {
+			var bounds = project(selected);
+			if (!cursorSet && event.x >= bounds.x && event.x < bounds.x + bounds.width) {
+				if (event.y >= bounds.y && event.y < bounds.y + bounds.height) {
 					// This is the four-arrows "move" cursor.
 					canvas.setCursor(canvas.getDisplay().getSystemCursor(SWT.CURSOR_SIZEALL));
 					cursorSet = true;
@@ -421,6 +792,42 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 		}
 	}
 
+	/**
+	 * Brings the drag in progress up to date with the latest mouse position. Runs at
+	 * most once per frame, however fast mouse events arrive.
+	 */
+	private void applyDrag() {
+		if (canvas.isDisposed()) {
+			return;
+		}
+		if (panning) {
+			panX = panDownX - (currentMouseX - mouseDownX) / projection.getScaleX();
+			panY = panDownY - (currentMouseY - mouseDownY) / projection.getScaleY();
+			invalidateStaticLayer(Trigger.Mouse);
+
+		} else if (makingNewRect) {
+			var area = newRectArea();
+			redrawMoved(newRectArea, area, Trigger.Mouse);
+			newRectArea = area;
+
+		} else if (resizingRect) {
+			// Calculate the new resize coordinates. The resize listener redraws.
+			updateTempResize();
+
+		} else if (movingRect) {
+			// Calculate the new position. The resize listener redraws.
+			updateTempMove();
+		}
+	}
+
+	/**
+	 * @return How many mouse moves were skipped because a newer one arrived within the
+	 *         same frame.
+	 */
+	public long getDroppedDragEvents() {
+		return dragUpdates.getDroppedCount();
+	}
+
 	@Override
 	public void mouseDoubleClick(MouseEvent event) {
 		// Ignored
@@ -428,6 +835,17 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 
 	@Override
 	public void mouseDown(MouseEvent event) {
+		// The middle button pans, whatever the tool.
+		if (event.button == 2) {
+			panning = true;
+			mouseDownX = event.x;
+			mouseDownY = event.y;
+			panDownX = panX;
+			panDownY = panY;
+			canvas.setCursor(canvas.getDisplay().getSystemCursor(SWT.CURSOR_SIZEALL));
+			return;
+		}
+
 		// Selection handles ignore the current tool.
 		var selected = document.getSelectedRectangle();
 		if (selected != null) {
@@ -440,9 +858,10 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 					currentMouseX = event.x;
 					currentMouseY = event.y;
 					heldHandle = handle;
+					snapEngine = new SnapEngine(document, selected, snapToEdges, gridSize);
 
 					// Start a resize event.
-					document.setTempSize(this, selected.x, selected.y, selected.width, selected.height);
+					document.setTempSize(this, selected.getX(), selected.getY(), selected.getWidth(), selected.getHeight());
 
 					// Skip the logic for the current tool.
 					return;
@@ -450,17 +869,18 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			}
 
 			// Check the shape itself.
-			var size = canvas.getSize();
-			if (event.x > selected.x * size.x && event.x < (selected.x + selected.width) * size.x) {
-				if (event.y > selected.y * size.y && event.y < (selected.y + selected.height) * size.y) {
+			var bounds = project(selected);
+			if (event.x > bounds.x && event.x < bounds.x + bounds.width) {
+				if (event.y > bounds.y && event.y < bounds.y + bounds.height) {
 					movingRect = true;
 					mouseDownX = event.x;
 					mouseDownY = event.y;
 					currentMouseX = event.x;
 					currentMouseY = event.y;
+					snapEngine = new SnapEngine(document, selected, snapToEdges, gridSize);
 
 					// Start a resize event.
-					document.setTempSize(this, selected.x, selected.y, selected.width, selected.height);
+					document.setTempSize(this, selected.getX(), selected.getY(), selected.getWidth(), selected.getHeight());
 
 					// Skip the logic for the current tool.
 					return;
@@ -479,39 +899,40 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 				// Set a default cursor icon; this will be corrected to the actual appropriate
 				// icon whenever the user moves their mouse.
 				canvas.setCursor(canvas.getDisplay().getSystemCursor(SWT.CURSOR_SIZESE));
-				canvas.redraw();
+				newRectArea = newRectArea();
+				redrawMoved(null, newRectArea, Trigger.Mouse);
 				break;
 			case Select:
 				// Find the rectangle under the mouse, and select it. If no rectagle is
 				// under the mouse, clear the selection.
-				var size = canvas.getSize();
-				double mouseX = event.x / (double) size.x;
-				double mouseY = event.y / (double) size.y;
-				document.setSelectedRectangle(null);
-				for (var rect : document.getRectangles()) {
-					if (rect.x <= mouseX && rect.x + rect.width > mouseX) {
-						if (rect.y <= mouseY && rect.y + rect.height > mouseY) {
-							document.setSelectedRectangle(rect);
-							break;
-						}
-					}
-				}
+				double mouseX = toRatioX(event.x);
+				double mouseY = toRatioY(event.y);
+				document.setSelectedRectangle(document.getTopmostRectangleAt(mouseX, mouseY));
 				break;
 		}
 	}
 
 	@Override
 	public void mouseUp(MouseEvent event) {
-		canvas.setCursor(new Cursor(canvas.getDisplay(), SWT.CURSOR_ARROW));
+		canvas.setCursor(canvas.getDisplay().getSystemCursor(SWT.CURSOR_ARROW));
+		if (panning) {
+			// Catch up with the last mouse position before stopping.
+			dragUpdates.flush();
+			panning = false;
+			return;
+		}
+		// The code below works from the latest mouse position itself.
+		dragUpdates.cancel();
 		if (makingNewRect) {
 			makingNewRect = false;
-			var size = canvas.getSize();
+			// Adding the rectangle redraws everything.
+			newRectArea = null;
 
 			// Convert to normalized ratio coordinates.
-			double width = Math.abs(currentMouseX - mouseDownX) / (double) size.x;
-			double height = Math.abs(currentMouseY - mouseDownY) / (double) size.y;
-			double x = Math.min(currentMouseX, mouseDownX) / (double) size.x;
-			double y = Math.min(currentMouseY, mouseDownY) / (double) size.y;
+			double width = Math.abs(currentMouseX - mouseDownX) / projection.getScaleX();
+			double height = Math.abs(currentMouseY - mouseDownY) / projection.getScaleY();
+			double x = toRatioX(Math.min(currentMouseX, mouseDownX));
+			double y = toRatioY(Math.min(currentMouseY, mouseDownY));
 
 			// Round to 3 decimal places.
 			width = round(width);
@@ -547,33 +968,61 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 
 			resizingRect = false;
 			heldHandle = null;
+			snapEngine = null;
 		} else if (movingRect) {
-			var size = canvas.getSize();
-			double deltaX = (currentMouseX - mouseDownX) / (double) size.x;
-			double deltaY = (currentMouseY - mouseDownY) / (double) size.y;
+			// Let the move function do the calculations for us.
+			updateTempMove();
+			double newX = document.getTempX();
+			double newY = document.getTempY();
+			document.cancelTempSize(this);
 
 			var selected = document.getSelectedRectangle();
-			double newX = selected.x + deltaX;
-			double newY = selected.y + deltaY;
-
-			newX = round(newX);
-			newY = round(newY);
-			document.cancelTempSize(this);
-			document.getUndoStack().push(new ResizeRectangleAction(selected, newX, newY, selected.width, selected.height));
+			document.getUndoStack().push(new ResizeRectangleAction(selected, newX, newY, selected.getWidth(), selected.getHeight()));
 
 			movingRect = false;
+			snapEngine = null;
 		}
 	}
 
+	private void updateTempMove() {
+		var selected = document.getSelectedRectangle();
+		double deltaX = (currentMouseX - mouseDownX) / projection.getScaleX();
+		double deltaY = (currentMouseY - mouseDownY) / projection.getScaleY();
+
+		double newX = selected.getX() + deltaX;
+		double newY = selected.getY() + deltaY;
+		double width = selected.getWidth();
+		double height = selected.getHeight();
+
+		// Snap whichever of the left edge, center or right edge is closest, and the same
+		// vertically.
+		double newGuideX = Double.NaN;
+		double newGuideY = Double.NaN;
+		var snapX = snapEngine.snapX(SNAP_DISTANCE / projection.getScaleX(), newX, newX + width / 2, newX + width);
+		if (snapX != null) {
+			newX += snapX.delta;
+			newGuideX = snapX.toEdge ? snapX.position : Double.NaN;
+		}
+		var snapY = snapEngine.snapY(SNAP_DISTANCE / projection.getScaleY(), newY, newY + height / 2, newY + height);
+		if (snapY != null) {
+			newY += snapY.delta;
+			newGuideY = snapY.toEdge ? snapY.position : Double.NaN;
+		}
+		setGuides(newGuideX, newGuideY);
+
+		newX = round(newX);
+		newY = round(newY);
+		document.setTempSize(this, newX, newY, width, height);
+	}
+
 	private void updateTempResize() {
 		assert (heldHandle != null);
-		var size = canvas.getSize();
 		// General strategy: pick a corner to keep constant, then change width and height
 		// by the movement of the mouse.
 
 		// Get the distance the mouse has moved.
-		double deltaX = (currentMouseX - mouseDownX) / (double) size.x;
-		double deltaY = (currentMouseY - mouseDownY) / (double) size.y;
+		double deltaX = (currentMouseX - mouseDownX) / projection.getScaleX();
+		double deltaY = (currentMouseY - mouseDownY) / projection.getScaleY();
 
 		double x;
 		double y;
@@ -584,21 +1033,21 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 
 		if (heldHandle == handleNW || heldHandle == handleSW || heldHandle == handleW || heldHandle == visibleHandleNW || heldHandle == visibleHandleSW) {
 			// Northern handles and vertical edges: use one of the southern corners.
-			x = rect.x + rect.width;
-			width = -rect.width;
+			x = rect.getX() + rect.getWidth();
+			width = -rect.getWidth();
 		} else {
 			// Southern handles: use one of the northern corners.
-			x = rect.x;
-			width = rect.width;
+			x = rect.getX();
+			width = rect.getWidth();
 		}
 		if (heldHandle == handleNW || heldHandle == handleNE || heldHandle == handleN || heldHandle == visibleHandleNW || heldHandle == visibleHandleNE) {
 			// Western handles and horizontal edges: use one of the eastern corners.
-			y = rect.y + rect.height;
-			height = -rect.height;
+			y = rect.getY() + rect.getHeight();
+			height = -rect.getHeight();
 		} else {
 			// Eastern handles: use one of the western corners.
-			y = rect.y;
-			height = rect.height;
+			y = rect.getY();
+			height = rect.getHeight();
 		}
 
 		if (heldHandle != handleN && heldHandle != handleS) {
@@ -610,6 +1059,25 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 			height += deltaY;
 		}
 
+		// Snap the edges the handle moves. (x, y) is the corner that stays put.
+		double newGuideX = Double.NaN;
+		double newGuideY = Double.NaN;
+		if (heldHandle != handleN && heldHandle != handleS) {
+			var snap = snapEngine.snapX(SNAP_DISTANCE / projection.getScaleX(), x + width);
+			if (snap != null) {
+				width += snap.delta;
+				newGuideX = snap.toEdge ? snap.position : Double.NaN;
+			}
+		}
+		if (heldHandle != handleW && heldHandle != handleE) {
+			var snap = snapEngine.snapY(SNAP_DISTANCE / projection.getScaleY(), y + height);
+			if (snap != null) {
+				height += snap.delta;
+				newGuideY = snap.toEdge ? snap.position : Double.NaN;
+			}
+		}
+		setGuides(newGuideX, newGuideY);
+
 		// Round.
 		x = round(x);
 		y = round(y);
@@ -640,19 +1108,34 @@ public class Editor implements PaintListener, MouseListener, MouseMoveListener,
 	}
 
 	@Override
-	public void resizeStarted(Object source) {}
+	public void resizeStarted(Object source) {
+		// The selected rectangle stops being drawn where it's stored, so the first resize
+		// has to redraw that area too.
+		liveArea = selectionArea(project(document.getSelectedRectangle()));
+	}
 
 	@Override
 	public void resize(double x, double y, double width, double height) {
-		canvas.redraw();
+		var area = selectionArea(project(x, y, width, height));
+		redrawMoved(liveArea, area, Trigger.TempResize);
+		liveArea = area;
 	}
 
 	@Override
 	public void resizeCancelled(Object source) {
-		canvas.redraw();
+		setGuides(Double.NaN, Double.NaN);
+		var selected = document.getSelectedRectangle();
+		if (selected != null) {
+			redrawMoved(liveArea, selectionArea(project(selected)), Trigger.TempResize);
+		} else if (liveArea != null) {
+			redrawMoved(null, liveArea, Trigger.TempResize);
+		}
+		liveArea = null;
 	}
 
 	private static double round(double value) {
-		return Math.round(value * 1000) / 1000.0;
+		// Rounding to a whole FixedPoint unit means fixed-point documents store exactly
+		// what the editor shows.
+		return FixedPoint.quantize(value);
 	}
 }
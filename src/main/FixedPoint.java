@@ -0,0 +1,36 @@
+package main;
+
+/**
+ * Conversions for fixed-point coordinates, which are stored as an integer number of
+ * units rather than as a ratio.
+ */
+public class FixedPoint {
+
+	// Matches the rounding the editor already does (3 decimal places).
+	public static final int SCALE = 1000;
+
+	private FixedPoint() {}
+
+	public static int fromRatio(double ratio) {
+		return (int) Math.round(ratio * SCALE);
+	}
+
+	public static double toRatio(int units) {
+		return units / (double) SCALE;
+	}
+
+	/**
+	 * Rounds a ratio to the nearest value that can be stored exactly as fixed-point.
+	 */
+	public static double quantize(double ratio) {
+		return toRatio(fromRatio(ratio));
+	}
+
+	/**
+	 * @return The unit containing the ratio. Unlike fromRatio, this always rounds down,
+	 *         so it can be compared against rectangle edges in hit-testing.
+	 */
+	public static int floorFromRatio(double ratio) {
+		return (int) Math.floor(ratio * SCALE);
+	}
+}
@@ -0,0 +1,92 @@
+package main;
+
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Runs a task on the display thread at most once per frame. Requests made while a run
+ * is already pending are folded into it, so the task should read whatever state is
+ * newest when it runs rather than state captured when it was requested.
+ */
+public class FrameCoalescer {
+
+	// About 60 frames a second.
+	public static final int FRAME_MILLIS = 16;
+
+	private final Display display;
+	private final Runnable task;
+	// timerExec() cancels by identity, so this has to be the same object every time.
+	private final Runnable runner;
+	private boolean scheduled;
+	private long lastRunNanos;
+	private long droppedCount;
+
+	public FrameCoalescer(Display display, Runnable task) {
+		assert (display != null);
+		assert (task != null);
+		this.display = display;
+		this.task = task;
+		runner = this::run;
+		scheduled = false;
+		lastRunNanos = 0;
+		droppedCount = 0;
+	}
+
+	/**
+	 * Asks for the task to run. If a run is already pending, this request is dropped
+	 * and that run picks up the newer state instead.
+	 */
+	public void request() {
+		if (scheduled) {
+			droppedCount += 1;
+			return;
+		}
+		scheduled = true;
+		long waitMillis = FRAME_MILLIS - (System.nanoTime() - lastRunNanos) / 1_000_000;
+		if (waitMillis <= 0) {
+			display.asyncExec(runner);
+		} else {
+			display.timerExec((int) waitMillis, runner);
+		}
+	}
+
+	/**
+	 * Runs the pending task now, if there is one.
+	 */
+	public void flush() {
+		if (scheduled) {
+			display.timerExec(-1, runner);
+			run();
+		}
+	}
+
+	/**
+	 * Forgets the pending task, if there is one.
+	 */
+	public void cancel() {
+		if (scheduled) {
+			display.timerExec(-1, runner);
+			scheduled = false;
+		}
+	}
+
+	public boolean isScheduled() {
+		return scheduled;
+	}
+
+	/**
+	 * @return How many requests were folded into a pending run.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	private void run() {
+		// An asyncExec can't be cancelled, so it might still arrive after cancel().
+		if (!scheduled) {
+			return;
+		}
+		scheduled = false;
+		lastRunNanos = System.nanoTime();
+		task.run();
+	}
+}
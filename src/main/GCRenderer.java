@@ -0,0 +1,26 @@
+package main;
+
+import org.eclipse.swt.graphics.GC;
+
+/**
+ * Draws onto an SWT graphics context, in whatever foreground color it's set to.
+ */
+public class GCRenderer implements Renderer {
+
+	private final GC context;
+
+	public GCRenderer(GC context) {
+		assert (context != null);
+		this.context = context;
+	}
+
+	@Override
+	public void drawRectangle(int x, int y, int width, int height) {
+		context.drawRectangle(x, y, width, height);
+	}
+
+	@Override
+	public void drawPoint(int x, int y) {
+		context.drawPoint(x, y);
+	}
+}
@@ -0,0 +1,85 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Draws into an AWT BufferedImage, so documents can be rendered without a display.
+ *
+ * The pixels are written straight into the image's int array rather than through
+ * Graphics2D. Outlines are always axis-aligned and one pixel wide, so nothing more is
+ * needed.
+ */
+public class ImageRenderer implements Renderer {
+
+	private final BufferedImage image;
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	private int foreground;
+
+	/**
+	 * @param background The color to clear the image to, as 0xRRGGBB.
+	 */
+	public ImageRenderer(int width, int height, int background) {
+		assert (width > 0 && height > 0);
+		this.width = width;
+		this.height = height;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(pixels, background);
+		foreground = 0;
+	}
+
+	/**
+	 * @param color As 0xRRGGBB.
+	 */
+	public void setForeground(int color) {
+		foreground = color;
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	@Override
+	public void drawRectangle(int x, int y, int width, int height) {
+		int right = x + width;
+		int bottom = y + height;
+		drawHorizontal(x, right, y);
+		drawHorizontal(x, right, bottom);
+		drawVertical(x, y, bottom);
+		drawVertical(right, y, bottom);
+	}
+
+	@Override
+	public void drawPoint(int x, int y) {
+		if (x >= 0 && x < width && y >= 0 && y < height) {
+			pixels[y * width + x] = foreground;
+		}
+	}
+
+	// Both ends are inclusive.
+	private void drawHorizontal(int x1, int x2, int y) {
+		if (y < 0 || y >= height) {
+			return;
+		}
+		int from = Math.max(0, x1);
+		int to = Math.min(width - 1, x2);
+		if (from <= to) {
+			Arrays.fill(pixels, y * width + from, y * width + to + 1, foreground);
+		}
+	}
+
+	private void drawVertical(int x, int y1, int y2) {
+		if (x < 0 || x >= width) {
+			return;
+		}
+		int from = Math.max(0, y1);
+		int to = Math.min(height - 1, y2);
+		for (int y = from; y <= to; y++) {
+			pixels[y * width + x] = foreground;
+		}
+	}
+}
@@ -150,7 +150,13 @@ public class ObjectInfoTab extends Composite implements TemporaryResizeListener
 		var selectionListener = DocumentManager.addCurrentDocumentSelectionListener(this::selectedRectChanged);
 		var documentChangeListener = DocumentManager.addSelectionListener(newDocument->selectedRectChanged(newDocument.getSelectedRectangle()));
 		var tempResizeListener = DocumentManager.addCurrentDocumentTemporaryResizeListener(this);
-		var actionListener = DocumentManager.addCurrentDocumentUndoActionListener(action->populate());
+		var actionListener = DocumentManager.addCurrentDocumentUndoActionListener(event-> {
+			// Only the selected rectangle is shown.
+			var selected = DocumentManager.getCurrentDocument().getSelectedRectangle();
+			if (selected != null && event.touches(selected)) {
+				populate();
+			}
+		});
 
 		// Clean up listeners.
 		addDisposeListener(e-> {
@@ -189,10 +195,10 @@ public class ObjectInfoTab extends Composite implements TemporaryResizeListener
 		var resizeSource = DocumentManager.getCurrentDocument().getResizeSource();
 
 		if ((resizeSource == null || resizeSource == this) && currentlyModifiedDocument != null) {
-			var x = currentlyModifiedRectangle.x;
-			var y = currentlyModifiedRectangle.y;
-			var width = currentlyModifiedRectangle.width;
-			var height = currentlyModifiedRectangle.height;
+			var x = currentlyModifiedRectangle.getX();
+			var y = currentlyModifiedRectangle.getY();
+			var width = currentlyModifiedRectangle.getWidth();
+			var height = currentlyModifiedRectangle.getHeight();
 			if (textField == textX) {
 				x = value;
 			} else if (textField == textY) {
@@ -256,10 +262,10 @@ public class ObjectInfoTab extends Composite implements TemporaryResizeListener
 			for (var field : textFields) {
 				field.setEnabled(true);
 			}
-			double x = rect.x;
-			double y = rect.y;
-			double width = rect.width;
-			double height = rect.height;
+			double x = rect.getX();
+			double y = rect.getY();
+			double width = rect.getWidth();
+			double height = rect.getHeight();
 			if (document.hasTempResize()) {
 				x = document.getTempX();
 				y = document.getTempY();
@@ -267,7 +273,7 @@ public class ObjectInfoTab extends Composite implements TemporaryResizeListener
 				height = document.getTempHeight();
 			}
 
-			textName.setText(rect.name);
+			textName.setText(rect.getName());
 			textX.setText(Double.toString(x));
 			textY.setText(Double.toString(y));
 			textWidth.setText(Double.toString(width));
@@ -298,10 +304,10 @@ public class ObjectInfoTab extends Composite implements TemporaryResizeListener
 			return;
 		}
 
-		double x = currentlyModifiedRectangle.x;
-		double y = currentlyModifiedRectangle.y;
-		double width = currentlyModifiedRectangle.width;
-		double height = currentlyModifiedRectangle.height;
+		double x = currentlyModifiedRectangle.getX();
+		double y = currentlyModifiedRectangle.getY();
+		double width = currentlyModifiedRectangle.getWidth();
+		double height = currentlyModifiedRectangle.getHeight();
 
 		if (changedField == textX) {
 			x = newValue;
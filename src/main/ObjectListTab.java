@@ -58,7 +58,7 @@ public class ObjectListTab extends Composite {
 		tree.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::forwardSelectionEvent));
 
 		var documentSelectionListener = DocumentManager.addCurrentDocumentSelectionListener(this::rectSelected);
-		var documentChangeListener = DocumentManager.addCurrentDocumentUndoActionListener(action->populate());
+		var documentChangeListener = DocumentManager.addCurrentDocumentUndoActionListener(this::applyChanges);
 		var selectionListener = DocumentManager.addSelectionListener(document->populate());
 
 		buttonUp.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onButtonUp));
@@ -83,6 +83,7 @@ public class ObjectListTab extends Composite {
 		assert (index != -1);
 		if (index > 0) {
 			document.setPosition(document.getSelectedRectangle(), index - 1);
+			updateLabels(index - 1, index);
 		}
 	}
 
@@ -92,6 +93,17 @@ public class ObjectListTab extends Composite {
 		assert (index != -1);
 		if (index < document.getRectangles().size() - 1) {
 			document.setPosition(document.getSelectedRectangle(), index + 1);
+			updateLabels(index, index + 1);
+		}
+	}
+
+	/**
+	 * Reordering isn't undoable, so there's no UndoEvent for it.
+	 */
+	private void updateLabels(int first, int last) {
+		var rectangles = DocumentManager.getCurrentDocument().getRectangles();
+		for (int i = first; i <= last; i++) {
+			tree.getItem(i).setText(rectangles.get(i).toString());
 		}
 	}
 
@@ -133,16 +145,44 @@ public class ObjectListTab extends Composite {
 		}
 	}
 
+	/**
+	 * Updates only the items the event touched, rather than rebuilding the tree.
+	 */
+	private void applyChanges(UndoEvent event) {
+		if (event.getChanges().size() > tree.getItemCount()) {
+			// Patching item by item would cost more than starting over.
+			populate();
+			return;
+		}
+		for (var change : event.getChanges()) {
+			switch (change.kind) {
+				case Added:
+					var item = new TreeItem(tree, SWT.NONE, change.index);
+					item.setText(change.rectangle.toString());
+					break;
+				case Removed:
+					tree.getItem(change.index).dispose();
+					break;
+				case Bounds:
+				case Renamed:
+					// Later changes may have altered the rectangle again, but its label
+					// only needs to be right at the end.
+					tree.getItem(change.index).setText(change.rectangle.toString());
+					break;
+			}
+		}
+		assert (tree.getItemCount() == DocumentManager.getCurrentDocument().getRectangles().size());
+
+		// Fake a selection event.
+		rectSelected(DocumentManager.getCurrentDocument().getSelectedRectangle());
+	}
+
 	/**
 	 * Call this when the data array changes.
 	 */
 	public void populate() {
 		var file = DocumentManager.getCurrentDocument();
-		var data = file.getRectangles();
-		String[] entries = new String[data.size()];
-		for (int i = 0; i < entries.length; i++) {
-			entries[i] = data.get(i).toString();
-		}
+		var entries = file.getRectangles().getLabels();
 
 		tree.removeAll();
 		tree.deselectAll();
@@ -0,0 +1,162 @@
+package main;
+
+/**
+ * Counts what the editor's paints cost: how long each took, how many rectangles it
+ * looked at and drew, what asked for it, and how many paints happened in the last
+ * second. Recording is a few field writes, so it's always on.
+ */
+public class PaintMetrics {
+
+	// Enough paints to cover a second at well over any refresh rate.
+	private static final int HISTORY = 256;
+	private static final long SECOND_NANOS = 1_000_000_000L;
+
+	private final long[] startTimes;
+	private final long[] durations;
+	private long paintCount;
+	private long paintStart;
+
+	private int visited;
+	private int drawn;
+	private int lastVisited;
+	private int lastDrawn;
+
+	private final long[] redrawCounts;
+	private Trigger lastTrigger;
+
+	public PaintMetrics() {
+		startTimes = new long[HISTORY];
+		durations = new long[HISTORY];
+		paintCount = 0;
+		paintStart = -1;
+		redrawCounts = new long[Trigger.values().length];
+		lastTrigger = null;
+	}
+
+	/**
+	 * Notes that a redraw was asked for, and why.
+	 */
+	public void recordRedraw(Trigger trigger) {
+		redrawCounts[trigger.ordinal()] += 1;
+		lastTrigger = trigger;
+	}
+
+	public void beginPaint() {
+		assert (paintStart == -1);
+		paintStart = System.nanoTime();
+		visited = 0;
+		drawn = 0;
+	}
+
+	/**
+	 * Notes rectangles that were looked at during this paint.
+	 */
+	public void addVisited(int count) {
+		visited += count;
+	}
+
+	/**
+	 * Notes shapes that were drawn during this paint.
+	 */
+	public void addDrawn(int count) {
+		drawn += count;
+	}
+
+	public void endPaint() {
+		assert (paintStart != -1);
+		int index = (int) (paintCount % HISTORY);
+		startTimes[index] = paintStart;
+		durations[index] = System.nanoTime() - paintStart;
+		paintCount += 1;
+		paintStart = -1;
+		lastVisited = visited;
+		lastDrawn = drawn;
+	}
+
+	public long getPaintCount() {
+		return paintCount;
+	}
+
+	/**
+	 * @return How long the last paint took, or 0 if there hasn't been one.
+	 */
+	public double getLastPaintMillis() {
+		if (paintCount == 0) {
+			return 0;
+		}
+		return durations[(int) ((paintCount - 1) % HISTORY)] / 1e6;
+	}
+
+	/**
+	 * @return The average length of the paints in the last second.
+	 */
+	public double getAveragePaintMillis() {
+		int count = 0;
+		long total = 0;
+		long cutoff = System.nanoTime() - SECOND_NANOS;
+		for (long i = paintCount - 1; i >= 0 && i >= paintCount - HISTORY; i--) {
+			int index = (int) (i % HISTORY);
+			if (startTimes[index] < cutoff) {
+				break;
+			}
+			count += 1;
+			total += durations[index];
+		}
+		return count == 0 ? 0 : total / 1e6 / count;
+	}
+
+	/**
+	 * @return How many paints started in the last second.
+	 */
+	public int getFramesPerSecond() {
+		int count = 0;
+		long cutoff = System.nanoTime() - SECOND_NANOS;
+		for (long i = paintCount - 1; i >= 0 && i >= paintCount - HISTORY; i--) {
+			if (startTimes[(int) (i % HISTORY)] < cutoff) {
+				break;
+			}
+			count += 1;
+		}
+		return count;
+	}
+
+	/**
+	 * @return How many rectangles the last paint looked at.
+	 */
+	public int getLastVisited() {
+		return lastVisited;
+	}
+
+	/**
+	 * @return How many shapes the last paint drew.
+	 */
+	public int getLastDrawn() {
+		return lastDrawn;
+	}
+
+	public long getRedrawCount(Trigger trigger) {
+		return redrawCounts[trigger.ordinal()];
+	}
+
+	/**
+	 * @return What asked for the most recent redraw, or null if nothing has.
+	 */
+	public Trigger getLastTrigger() {
+		return lastTrigger;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d fps, %.2f ms (avg %.2f ms), visited %d, drawn %d, last redraw: %s", getFramesPerSecond(), getLastPaintMillis(),
+			getAveragePaintMillis(), lastVisited, lastDrawn, lastTrigger);
+	}
+
+	/**
+	 * What asked for a redraw. TempResize covers a temporary resize starting, moving or
+	 * being cancelled; Mouse covers placing, panning and wheel zooms; View covers canvas
+	 * resizes and view changes from the menu.
+	 */
+	public static enum Trigger {
+		Undo, Selection, TempResize, Mouse, View
+	}
+}
@@ -0,0 +1,156 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Each rectangle's bounds in pixels at the editor's current scale, so painting and
+ * mouse handling don't redo the rounding on every event.
+ *
+ * Entries are indexed by store slot and computed the first time they're asked for.
+ * Pan isn't applied here; the editor subtracts its pan offset afterwards, so panning
+ * doesn't invalidate anything. An entry is only reused if it was computed since the
+ * last invalidate() and its slot still holds the same rectangle. Reordering and
+ * compaction move rectangles between slots, so whenever the store's layout changes,
+ * everything is invalidated; otherwise a rectangle that moves back into a slot it left
+ * would pick up the entry it left behind.
+ */
+public class ProjectionCache {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private double scaleX;
+	private double scaleY;
+
+	// Bumped by invalidate(); entries stamped with an older generation are stale. Starts
+	// at 1, so 0 is always stale.
+	private int generation;
+	private int[] generations;
+	private Rectangle[] rects;
+	private int[] xs;
+	private int[] ys;
+	private int[] widths;
+	private int[] heights;
+
+	// The store the entries came from, and its layout version when they did.
+	private RectangleStore store;
+	private int layoutVersion;
+
+	public ProjectionCache() {
+		scaleX = 1;
+		scaleY = 1;
+		generation = 1;
+		generations = new int[INITIAL_CAPACITY];
+		rects = new Rectangle[INITIAL_CAPACITY];
+		xs = new int[INITIAL_CAPACITY];
+		ys = new int[INITIAL_CAPACITY];
+		widths = new int[INITIAL_CAPACITY];
+		heights = new int[INITIAL_CAPACITY];
+		store = null;
+		layoutVersion = 0;
+	}
+
+	/**
+	 * Sets the number of pixels one ratio unit covers. Invalidates everything if it
+	 * changed.
+	 */
+	public void setScale(double scaleX, double scaleY) {
+		if (scaleX != this.scaleX || scaleY != this.scaleY) {
+			this.scaleX = scaleX;
+			this.scaleY = scaleY;
+			invalidate();
+		}
+	}
+
+	/**
+	 * Forgets every entry. Call this whenever any rectangle's geometry changes.
+	 */
+	public void invalidate() {
+		generation += 1;
+	}
+
+	/**
+	 * Forgets one rectangle's entry. Call this when only that rectangle has changed.
+	 */
+	public void invalidate(Rectangle rect) {
+		if (rect.store == null) {
+			// Its old slot's entry can't be reused by anything else.
+			return;
+		}
+		int slot = rect.slot;
+		if (slot < rects.length && rects[slot] == rect) {
+			generations[slot] = 0;
+		}
+	}
+
+	/**
+	 * Brings the rectangle's entry up to date.
+	 *
+	 * @return The index to read the entry with.
+	 */
+	public int project(Rectangle rect) {
+		assert (rect.store != null);
+		if (rect.store != store || rect.store.getLayoutVersion() != layoutVersion) {
+			store = rect.store;
+			layoutVersion = store.getLayoutVersion();
+			invalidate();
+		}
+		int slot = rect.slot;
+		if (slot >= rects.length) {
+			grow(slot + 1);
+		}
+		if (generations[slot] != generation || rects[slot] != rect) {
+			xs[slot] = scaleX(store.getX(slot));
+			ys[slot] = scaleY(store.getY(slot));
+			widths[slot] = scaleX(store.getWidth(slot));
+			heights[slot] = scaleY(store.getHeight(slot));
+			rects[slot] = rect;
+			generations[slot] = generation;
+		}
+		return slot;
+	}
+
+	public int getX(int index) {
+		return xs[index];
+	}
+
+	public int getY(int index) {
+		return ys[index];
+	}
+
+	public int getWidth(int index) {
+		return widths[index];
+	}
+
+	public int getHeight(int index) {
+		return heights[index];
+	}
+
+	/**
+	 * Scales a ratio without caching it, rounding the same way the entries do.
+	 */
+	public int scaleX(double ratio) {
+		return (int) Math.round(ratio * scaleX);
+	}
+
+	public int scaleY(double ratio) {
+		return (int) Math.round(ratio * scaleY);
+	}
+
+	public double getScaleX() {
+		return scaleX;
+	}
+
+	public double getScaleY() {
+		return scaleY;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, rects.length * 2);
+		generations = Arrays.copyOf(generations, capacity);
+		rects = Arrays.copyOf(rects, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		widths = Arrays.copyOf(widths, capacity);
+		heights = Arrays.copyOf(heights, capacity);
+	}
+}
@@ -0,0 +1,355 @@
+package main;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A compact string-keyed map for rectangle properties.
+ *
+ * Numbers and booleans are stored unboxed in a double array; anything else (strings,
+ * nested JSON) goes in an object array that is only allocated when needed. Keys are
+ * interned, since most documents reuse the same handful of property names.
+ *
+ * Small maps keep their keys sorted and use binary search. Once a map grows past
+ * SMALL_LIMIT entries it switches to an open-addressing hash index.
+ */
+@JsonAdapter(PropertyMap.PropertyMapTypeAdapter.class)
+public class PropertyMap {
+
+	private static final int SMALL_LIMIT = 8;
+
+	static final byte NUMBER = 0;
+	static final byte BOOLEAN = 1;
+	static final byte OBJECT = 2;
+
+	private String[] keys;
+	private byte[] types;
+	// Booleans are stored as 0 or 1.
+	private double[] numbers;
+	// Null until a non-primitive value is added.
+	private Object[] objects;
+	private int size;
+
+	// Null while the map is small. Otherwise each entry is an index into keys + 1,
+	// with 0 meaning empty.
+	private int[] hashIndex;
+
+	public PropertyMap() {
+		keys = new String[2];
+		types = new byte[2];
+		numbers = new double[2];
+		objects = null;
+		size = 0;
+		hashIndex = null;
+	}
+
+	public PropertyMap(PropertyMap other) {
+		keys = Arrays.copyOf(other.keys, other.keys.length);
+		types = Arrays.copyOf(other.types, other.types.length);
+		numbers = Arrays.copyOf(other.numbers, other.numbers.length);
+		objects = other.objects == null ? null : Arrays.copyOf(other.objects, other.objects.length);
+		size = other.size;
+		hashIndex = other.hashIndex == null ? null : Arrays.copyOf(other.hashIndex, other.hashIndex.length);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(String key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * @return The value, boxed. Numbers are returned as Double, the same as Gson used to
+	 *         produce. Returns null if the key isn't present.
+	 */
+	public Object get(String key) {
+		int index = find(key);
+		if (index < 0) {
+			return null;
+		}
+		return valueAt(index);
+	}
+
+	public double getNumber(String key, double defaultValue) {
+		int index = find(key);
+		if (index < 0 || types[index] != NUMBER) {
+			return defaultValue;
+		}
+		return numbers[index];
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		int index = find(key);
+		if (index < 0 || types[index] != BOOLEAN) {
+			return defaultValue;
+		}
+		return numbers[index] != 0;
+	}
+
+	public void putNumber(String key, double value) {
+		int index = findOrAdd(key);
+		types[index] = NUMBER;
+		numbers[index] = value;
+		clearObject(index);
+	}
+
+	public void putBoolean(String key, boolean value) {
+		int index = findOrAdd(key);
+		types[index] = BOOLEAN;
+		numbers[index] = value ? 1 : 0;
+		clearObject(index);
+	}
+
+	/**
+	 * Numbers and booleans are unboxed. Anything else is stored as-is.
+	 */
+	public void put(String key, Object value) {
+		if (value instanceof Number) {
+			putNumber(key, ((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			putBoolean(key, (Boolean) value);
+		} else {
+			int index = findOrAdd(key);
+			if (objects == null) {
+				objects = new Object[keys.length];
+			}
+			types[index] = OBJECT;
+			numbers[index] = 0;
+			objects[index] = value;
+		}
+	}
+
+	public void remove(String key) {
+		int index = find(key);
+		if (index < 0) {
+			return;
+		}
+		int moved = size - index - 1;
+		System.arraycopy(keys, index + 1, keys, index, moved);
+		System.arraycopy(types, index + 1, types, index, moved);
+		System.arraycopy(numbers, index + 1, numbers, index, moved);
+		if (objects != null) {
+			System.arraycopy(objects, index + 1, objects, index, moved);
+			objects[size - 1] = null;
+		}
+		keys[size - 1] = null;
+		size -= 1;
+		if (hashIndex != null) {
+			// Positions after the removed entry have shifted.
+			rebuildHashIndex();
+		}
+	}
+
+	/**
+	 * Calls the consumer with every entry, boxing values the same way as get().
+	 */
+	public void forEach(BiConsumer<String, Object> consumer) {
+		for (int i = 0; i < size; i++) {
+			consumer.accept(keys[i], valueAt(i));
+		}
+	}
+
+	// Unboxed access by position, for BinaryDocumentCodec.
+
+	String keyAt(int index) {
+		return keys[index];
+	}
+
+	byte typeAt(int index) {
+		return types[index];
+	}
+
+	double numberAt(int index) {
+		return numbers[index];
+	}
+
+	Object objectAt(int index) {
+		return objects[index];
+	}
+
+	private Object valueAt(int index) {
+		switch (types[index]) {
+			case NUMBER:
+				return numbers[index];
+			case BOOLEAN:
+				return numbers[index] != 0;
+			default:
+				return objects[index];
+		}
+	}
+
+	private void clearObject(int index) {
+		if (objects != null) {
+			objects[index] = null;
+		}
+	}
+
+	/**
+	 * @return The index of the key, or a negative number if it isn't present. For small
+	 *         maps, the negative number is -(insertion point) - 1.
+	 */
+	private int find(String key) {
+		if (hashIndex == null) {
+			return Arrays.binarySearch(keys, 0, size, key);
+		}
+		int mask = hashIndex.length - 1;
+		for (int bucket = hash(key) & mask;; bucket = (bucket + 1) & mask) {
+			int entry = hashIndex[bucket];
+			if (entry == 0) {
+				return -1;
+			}
+			var existing = keys[entry - 1];
+			if (existing == key || existing.equals(key)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private int findOrAdd(String key) {
+		assert (key != null);
+		int index = find(key);
+		if (index >= 0) {
+			return index;
+		}
+		key = key.intern();
+		if (size == keys.length) {
+			grow();
+		}
+
+		if (hashIndex == null && size < SMALL_LIMIT) {
+			// Keep the keys sorted.
+			index = -index - 1;
+			int moved = size - index;
+			System.arraycopy(keys, index, keys, index + 1, moved);
+			System.arraycopy(types, index, types, index + 1, moved);
+			System.arraycopy(numbers, index, numbers, index + 1, moved);
+			if (objects != null) {
+				System.arraycopy(objects, index, objects, index + 1, moved);
+				objects[index] = null;
+			}
+			keys[index] = key;
+			size += 1;
+			return index;
+		}
+
+		// Large maps append, and find entries through the hash index.
+		index = size;
+		keys[index] = key;
+		size += 1;
+		if (hashIndex == null || size * 2 > hashIndex.length) {
+			rebuildHashIndex();
+		} else {
+			insertIntoHashIndex(index);
+		}
+		return index;
+	}
+
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		types = Arrays.copyOf(types, capacity);
+		numbers = Arrays.copyOf(numbers, capacity);
+		if (objects != null) {
+			objects = Arrays.copyOf(objects, capacity);
+		}
+	}
+
+	private void rebuildHashIndex() {
+		int capacity = Integer.highestOneBit(Math.max(size, SMALL_LIMIT) * 4 - 1);
+		hashIndex = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			insertIntoHashIndex(i);
+		}
+	}
+
+	private void insertIntoHashIndex(int index) {
+		int mask = hashIndex.length - 1;
+		int bucket = hash(keys[index]) & mask;
+		while (hashIndex[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+		hashIndex[bucket] = index + 1;
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		// Spread the high bits, like HashMap does.
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Writes a JSON object, the same as Gson wrote for the HashMap this replaces.
+	 */
+	public static class PropertyMapTypeAdapter extends TypeAdapter<PropertyMap> {
+		@Override
+		public void write(JsonWriter out, PropertyMap value) throws IOException {
+			out.beginObject();
+			for (int i = 0; i < value.size; i++) {
+				out.name(value.keys[i]);
+				switch (value.types[i]) {
+					case NUMBER:
+						out.value(value.numbers[i]);
+						break;
+					case BOOLEAN:
+						out.value(value.numbers[i] != 0);
+						break;
+					default:
+						var object = value.objects[i];
+						if (object == null) {
+							out.nullValue();
+						} else if (object instanceof String) {
+							out.value((String) object);
+						} else if (object instanceof JsonElement) {
+							DocumentCodec.getGson().toJson((JsonElement) object, out);
+						} else {
+							DocumentCodec.getGson().toJson(object, object.getClass(), out);
+						}
+						break;
+				}
+			}
+			out.endObject();
+		}
+
+		@Override
+		public PropertyMap read(JsonReader in) throws IOException {
+			var ret = new PropertyMap();
+			in.beginObject();
+			while (in.hasNext()) {
+				var key = in.nextName();
+				switch (in.peek()) {
+					case NUMBER:
+						ret.putNumber(key, in.nextDouble());
+						break;
+					case BOOLEAN:
+						ret.putBoolean(key, in.nextBoolean());
+						break;
+					case STRING:
+						ret.put(key, in.nextString());
+						break;
+					case NULL:
+						in.nextNull();
+						ret.put(key, null);
+						break;
+					default:
+						ret.put(key, new JsonParser().parse(in));
+						break;
+				}
+			}
+			in.endObject();
+			return ret;
+		}
+	}
+}
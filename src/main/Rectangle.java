@@ -1,43 +1,157 @@
 package main;
 
-import java.util.HashMap;
+import java.io.IOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+/**
+ * A handle to a rectangle. While the rectangle is in a document, its name and geometry
+ * live in the document's RectangleStore; otherwise they're kept in the handle itself.
+ *
+ * Use Document or an UndoAction to change a rectangle, so that the document's indexes
+ * stay up to date.
+ */
+@JsonAdapter(Rectangle.RectangleTypeAdapter.class)
 public class Rectangle {
 
-	public String name;
-	public double x;
-	public double y;
-	public double width;
-	public double height;
+	// Maintained by RectangleStore.
+	RectangleStore store;
+	int slot;
+
+	// Only used while the rectangle isn't in a store.
+	private Detached detached;
 
 	/**
 	 * Can be null.
 	 */
-	public HashMap<String, Object> properties;
+	public PropertyMap properties;
 
-	/**
-	 * Used by Gson
-	 */
 	public Rectangle() {
 		this(0, 0, 0, 0);
 	}
 
 	public Rectangle(double x, double y, double width, double height) {
-		this.x = x;
-		this.y = y;
-		this.width = width;
-		this.height = height;
-		name = "";
+		store = null;
+		slot = -1;
+		detached = new Detached(x, y, width, height, "");
 		properties = null;
 	}
 
+	/**
+	 * Used by RectangleStore to create a rectangle that starts out in its columns.
+	 */
+	Rectangle(RectangleStore store, int slot) {
+		this.store = store;
+		this.slot = slot;
+		detached = null;
+		properties = null;
+	}
+
+	public double getX() {
+		return store == null ? detached.x : store.getX(slot);
+	}
+
+	public double getY() {
+		return store == null ? detached.y : store.getY(slot);
+	}
+
+	public double getWidth() {
+		return store == null ? detached.width : store.getWidth(slot);
+	}
+
+	public double getHeight() {
+		return store == null ? detached.height : store.getHeight(slot);
+	}
+
+	public String getName() {
+		return store == null ? detached.name : store.getName(slot);
+	}
+
+	/**
+	 * @return True if the rectangle is stored in a fixed-point document.
+	 */
+	public boolean isFixedPoint() {
+		return store != null && store.isFixedPoint();
+	}
+
+	/**
+	 * Uses half-open bounds, the same as selection in the editor. Fixed-point rectangles
+	 * are tested with integer math.
+	 */
+	public boolean contains(double x, double y) {
+		if (isFixedPoint()) {
+			int fixedX = FixedPoint.floorFromRatio(x);
+			int fixedY = FixedPoint.floorFromRatio(y);
+			int left = store.getFixedX(slot);
+			int top = store.getFixedY(slot);
+			return left <= fixedX && left + store.getFixedWidth(slot) > fixedX && top <= fixedY && top + store.getFixedHeight(slot) > fixedY;
+		}
+		double left = getX();
+		double top = getY();
+		return left <= x && left + getWidth() > x && top <= y && top + getHeight() > y;
+	}
+
+	/**
+	 * Compares the rectangle's bounds. Fixed-point rectangles compare the rounded units,
+	 * so values that round to the same unit are equal.
+	 */
+	public boolean hasBounds(double x, double y, double width, double height) {
+		if (isFixedPoint()) {
+			return store.getFixedX(slot) == FixedPoint.fromRatio(x) && store.getFixedY(slot) == FixedPoint.fromRatio(y)
+					&& store.getFixedWidth(slot) == FixedPoint.fromRatio(width) && store.getFixedHeight(slot) == FixedPoint.fromRatio(height);
+		}
+		return getX() == x && getY() == y && getWidth() == width && getHeight() == height;
+	}
+
+	void setBounds(double x, double y, double width, double height) {
+		if (store == null) {
+			detached.x = x;
+			detached.y = y;
+			detached.width = width;
+			detached.height = height;
+		} else {
+			store.setBounds(slot, x, y, width, height);
+		}
+	}
+
+	void setName(String name) {
+		assert (name != null);
+		if (store == null) {
+			detached.name = name;
+		} else {
+			store.setName(slot, name);
+		}
+	}
+
+	/**
+	 * Called by RectangleStore once it has copied this rectangle's values into its columns.
+	 */
+	void attach(RectangleStore store, int slot) {
+		this.store = store;
+		this.slot = slot;
+		detached = null;
+	}
+
+	/**
+	 * Called by RectangleStore when this rectangle is removed, with the values from its columns.
+	 */
+	void detach(double x, double y, double width, double height, String name) {
+		store = null;
+		slot = -1;
+		detached = new Detached(x, y, width, height, name);
+	}
+
 	@Override
 	public String toString() {
+		var name = getName();
 		if (name.isBlank()) {
-			var ret = "(x:" + formatDecimal(x, 2);
-			ret += ", y:" + formatDecimal(y, 2);
-			ret += ", width:" + formatDecimal(width, 2);
-			ret += ", height:" + formatDecimal(height, 2);
+			var ret = "(x:" + formatDecimal(getX(), 2);
+			ret += ", y:" + formatDecimal(getY(), 2);
+			ret += ", width:" + formatDecimal(getWidth(), 2);
+			ret += ", height:" + formatDecimal(getHeight(), 2);
 			ret += ")";
 			return ret;
 		} else {
@@ -54,4 +168,141 @@ public class Rectangle {
 		}
 		return "0." + ret;
 	}
+
+	static class Detached {
+		double x;
+		double y;
+		double width;
+		double height;
+		String name;
+
+		Detached() {
+			this(0, 0, 0, 0, "");
+		}
+
+		Detached(double x, double y, double width, double height, String name) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Rectangles don't have fields for Gson to reflect on, so this reads and writes the
+	 * same format that reflection used to produce.
+	 */
+	public static class RectangleTypeAdapter extends TypeAdapter<Rectangle> {
+		private static final PropertyMap.PropertyMapTypeAdapter propertiesAdapter = new PropertyMap.PropertyMapTypeAdapter();
+
+		@Override
+		public void write(JsonWriter out, Rectangle value) throws IOException {
+			if (value.store != null) {
+				writeSlot(out, value.store, value.slot);
+				return;
+			}
+			out.beginObject();
+			out.name("name").value(value.getName());
+			out.name("x").value(value.getX());
+			out.name("y").value(value.getY());
+			out.name("width").value(value.getWidth());
+			out.name("height").value(value.getHeight());
+			writeProperties(out, value.properties);
+			out.endObject();
+		}
+
+		/**
+		 * Writes a rectangle straight from the store's columns.
+		 */
+		static void writeSlot(JsonWriter out, RectangleStore store, int slot) throws IOException {
+			out.beginObject();
+			out.name("name").value(store.getName(slot));
+			if (store.isFixedPoint()) {
+				// Written as units. Document records the scale.
+				out.name("x").value(store.getFixedX(slot));
+				out.name("y").value(store.getFixedY(slot));
+				out.name("width").value(store.getFixedWidth(slot));
+				out.name("height").value(store.getFixedHeight(slot));
+			} else {
+				out.name("x").value(store.getX(slot));
+				out.name("y").value(store.getY(slot));
+				out.name("width").value(store.getWidth(slot));
+				out.name("height").value(store.getHeight(slot));
+			}
+			writeProperties(out, store.getRectangleInSlot(slot).properties);
+			out.endObject();
+		}
+
+		private static void writeProperties(JsonWriter out, PropertyMap properties) throws IOException {
+			if (properties != null) {
+				out.name("properties");
+				propertiesAdapter.write(out, properties);
+			}
+		}
+
+		@Override
+		public Rectangle read(JsonReader in) throws IOException {
+			var ret = new Rectangle();
+			ret.properties = read(in, ret.detached);
+			return ret;
+		}
+
+		/**
+		 * Reads a rectangle and adds it straight to the end of the store.
+		 */
+		static Rectangle readInto(JsonReader in, RectangleStore store, Detached scratch) throws IOException {
+			scratch.x = 0;
+			scratch.y = 0;
+			scratch.width = 0;
+			scratch.height = 0;
+			scratch.name = "";
+			var properties = read(in, scratch);
+			var rect = store.appendNew(scratch.x, scratch.y, scratch.width, scratch.height, scratch.name);
+			rect.properties = properties;
+			return rect;
+		}
+
+		/**
+		 * Reads the name and geometry into `values`.
+		 * 
+		 * @return The properties, or null if there weren't any.
+		 */
+		private static PropertyMap read(JsonReader in, Detached values) throws IOException {
+			PropertyMap properties = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
+				}
+				switch (name) {
+					case "name":
+						values.name = in.nextString();
+						break;
+					case "x":
+						values.x = in.nextDouble();
+						break;
+					case "y":
+						values.y = in.nextDouble();
+						break;
+					case "width":
+						values.width = in.nextDouble();
+						break;
+					case "height":
+						values.height = in.nextDouble();
+						break;
+					case "properties":
+						properties = propertiesAdapter.read(in);
+						break;
+					default:
+						in.skipValue();
+						break;
+				}
+			}
+			in.endObject();
+			return properties;
+		}
+	}
 }
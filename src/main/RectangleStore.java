@@ -0,0 +1,636 @@
+package main;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Ordered storage for a document's rectangles.
+ *
+ * The names and geometry are kept in parallel arrays indexed by slot, so code that
+ * touches every rectangle (painting, hit-testing) can walk the columns directly.
+ * Rectangle objects are handles that point into these columns while they're in a
+ * document.
+ *
+ * In fixed-point mode the geometry columns hold int FixedPoint units instead of
+ * doubles. Only one set of columns is allocated at a time.
+ *
+ * Every rectangle remembers the slot it occupies, so finding a rectangle never needs
+ * a linear search. Removed rectangles leave an empty slot behind instead of shifting
+ * everything after them; a Fenwick tree over the occupied slots converts between
+ * slots and list indices in O(log n). The slots are compacted once more than half of
+ * them are empty.
+ *
+ * This is read-only through the List interface. Document is responsible for all changes.
+ */
+public class RectangleStore extends AbstractList<Rectangle> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Compacting very small stores isn't worth it.
+	private static final int MIN_COMPACT_GAPS = 64;
+
+	// null means the slot is empty.
+	private Rectangle[] slots;
+	private boolean fixedPoint;
+	private double[] xs;
+	private double[] ys;
+	private double[] widths;
+	private double[] heights;
+	private int[] fixedXs;
+	private int[] fixedYs;
+	private int[] fixedWidths;
+	private int[] fixedHeights;
+	private String[] names;
+	// Number of slots in use, including empty ones.
+	private int slotCount;
+	private int size;
+
+	// 1-based Fenwick tree counting the occupied slots.
+	private int[] tree;
+
+	// Bumped whenever a rectangle leaves a slot, so caches keyed by slot can tell that
+	// their entries may belong to other slots now.
+	private int layoutVersion;
+
+	public RectangleStore(boolean fixedPoint) {
+		this.fixedPoint = fixedPoint;
+		slots = new Rectangle[INITIAL_CAPACITY];
+		if (fixedPoint) {
+			fixedXs = new int[INITIAL_CAPACITY];
+			fixedYs = new int[INITIAL_CAPACITY];
+			fixedWidths = new int[INITIAL_CAPACITY];
+			fixedHeights = new int[INITIAL_CAPACITY];
+		} else {
+			xs = new double[INITIAL_CAPACITY];
+			ys = new double[INITIAL_CAPACITY];
+			widths = new double[INITIAL_CAPACITY];
+			heights = new double[INITIAL_CAPACITY];
+		}
+		names = new String[INITIAL_CAPACITY];
+		tree = new int[INITIAL_CAPACITY + 1];
+		slotCount = 0;
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Rectangle get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(index);
+		}
+		return slots[select(index)];
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof Rectangle)) {
+			return -1;
+		}
+		var rect = (Rectangle) o;
+		if (rect.store != this) {
+			return -1;
+		}
+		return prefix(rect.slot);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		// Rectangles can only be in the store once.
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Rectangle && ((Rectangle) o).store == this;
+	}
+
+	/**
+	 * Slots range from 0 to getSlotCount() - 1, in the same order as the list. Some of
+	 * them may be empty.
+	 */
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * @return The rectangle in the slot, or null if the slot is empty.
+	 */
+	public Rectangle getRectangleInSlot(int slot) {
+		return slots[slot];
+	}
+
+	public boolean isFixedPoint() {
+		return fixedPoint;
+	}
+
+	public double getX(int slot) {
+		return fixedPoint ? FixedPoint.toRatio(fixedXs[slot]) : xs[slot];
+	}
+
+	public double getY(int slot) {
+		return fixedPoint ? FixedPoint.toRatio(fixedYs[slot]) : ys[slot];
+	}
+
+	public double getWidth(int slot) {
+		return fixedPoint ? FixedPoint.toRatio(fixedWidths[slot]) : widths[slot];
+	}
+
+	public double getHeight(int slot) {
+		return fixedPoint ? FixedPoint.toRatio(fixedHeights[slot]) : heights[slot];
+	}
+
+	// These are only valid in fixed-point mode.
+
+	public int getFixedX(int slot) {
+		assert (fixedPoint);
+		return fixedXs[slot];
+	}
+
+	public int getFixedY(int slot) {
+		assert (fixedPoint);
+		return fixedYs[slot];
+	}
+
+	public int getFixedWidth(int slot) {
+		assert (fixedPoint);
+		return fixedWidths[slot];
+	}
+
+	public int getFixedHeight(int slot) {
+		assert (fixedPoint);
+		return fixedHeights[slot];
+	}
+
+	/**
+	 * Converts the geometry columns between doubles and fixed-point. Converting to
+	 * fixed-point rounds every coordinate to the nearest unit.
+	 */
+	void setFixedPoint(boolean value) {
+		if (value == fixedPoint) {
+			return;
+		}
+		int capacity = slots.length;
+		if (value) {
+			fixedXs = new int[capacity];
+			fixedYs = new int[capacity];
+			fixedWidths = new int[capacity];
+			fixedHeights = new int[capacity];
+			for (int slot = 0; slot < slotCount; slot++) {
+				fixedXs[slot] = FixedPoint.fromRatio(xs[slot]);
+				fixedYs[slot] = FixedPoint.fromRatio(ys[slot]);
+				fixedWidths[slot] = FixedPoint.fromRatio(widths[slot]);
+				fixedHeights[slot] = FixedPoint.fromRatio(heights[slot]);
+			}
+			xs = null;
+			ys = null;
+			widths = null;
+			heights = null;
+		} else {
+			xs = new double[capacity];
+			ys = new double[capacity];
+			widths = new double[capacity];
+			heights = new double[capacity];
+			for (int slot = 0; slot < slotCount; slot++) {
+				xs[slot] = FixedPoint.toRatio(fixedXs[slot]);
+				ys[slot] = FixedPoint.toRatio(fixedYs[slot]);
+				widths[slot] = FixedPoint.toRatio(fixedWidths[slot]);
+				heights[slot] = FixedPoint.toRatio(fixedHeights[slot]);
+			}
+			fixedXs = null;
+			fixedYs = null;
+			fixedWidths = null;
+			fixedHeights = null;
+		}
+		fixedPoint = value;
+		modCount += 1;
+	}
+
+	public String getName(int slot) {
+		return names[slot];
+	}
+
+	void setBounds(int slot, double x, double y, double width, double height) {
+		assert (slots[slot] != null);
+		if (fixedPoint) {
+			fixedXs[slot] = FixedPoint.fromRatio(x);
+			fixedYs[slot] = FixedPoint.fromRatio(y);
+			fixedWidths[slot] = FixedPoint.fromRatio(width);
+			fixedHeights[slot] = FixedPoint.fromRatio(height);
+		} else {
+			xs[slot] = x;
+			ys[slot] = y;
+			widths[slot] = width;
+			heights[slot] = height;
+		}
+	}
+
+	void setName(int slot, String name) {
+		assert (slots[slot] != null);
+		names[slot] = name;
+	}
+
+	/**
+	 * @return The label for every rectangle, in order, as shown in the object list.
+	 */
+	public String[] getLabels() {
+		var ret = new String[size];
+		int i = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (slots[slot] != null) {
+				ret[i] = slots[slot].toString();
+				i += 1;
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public Iterator<Rectangle> iterator() {
+		return new Iterator<>() {
+			private int nextSlot = skipEmpty(0);
+			private int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return nextSlot < slotCount;
+			}
+
+			@Override
+			public Rectangle next() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (nextSlot >= slotCount) {
+					throw new NoSuchElementException();
+				}
+				var ret = slots[nextSlot];
+				nextSlot = skipEmpty(nextSlot + 1);
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * Adds a rectangle to the end of the list.
+	 */
+	void append(Rectangle rect) {
+		assert (rect.store == null);
+		if (slotCount == slots.length) {
+			makeRoom();
+		}
+		place(rect, slotCount);
+		slotCount += 1;
+		size += 1;
+		modCount += 1;
+	}
+
+	/**
+	 * Creates a rectangle directly in the columns, at the end of the list. Used when
+	 * loading, to avoid building every rectangle twice.
+	 */
+	Rectangle appendNew(double x, double y, double width, double height, String name) {
+		if (slotCount == slots.length) {
+			makeRoom();
+		}
+		int slot = slotCount;
+		var rect = new Rectangle(this, slot);
+		slots[slot] = rect;
+		setBounds(slot, x, y, width, height);
+		names[slot] = name;
+		update(slot, 1);
+		slotCount += 1;
+		size += 1;
+		modCount += 1;
+		return rect;
+	}
+
+	/**
+	 * Fills an empty store with columns that were read in bulk. The arrays are used
+	 * as-is; their length becomes the store's capacity, and the first `count` entries of
+	 * each are the rectangles.
+	 */
+	void load(int count, double[] xs, double[] ys, double[] widths, double[] heights, String[] names) {
+		assert (xs.length == names.length && ys.length == names.length && widths.length == names.length && heights.length == names.length);
+		this.xs = xs;
+		this.ys = ys;
+		this.widths = widths;
+		this.heights = heights;
+		fixedXs = null;
+		fixedYs = null;
+		fixedWidths = null;
+		fixedHeights = null;
+		fixedPoint = false;
+		loadSlots(count, names);
+	}
+
+	/**
+	 * The same as load(), for fixed-point columns.
+	 */
+	void loadFixed(int count, int[] xs, int[] ys, int[] widths, int[] heights, String[] names) {
+		assert (xs.length == names.length && ys.length == names.length && widths.length == names.length && heights.length == names.length);
+		fixedXs = xs;
+		fixedYs = ys;
+		fixedWidths = widths;
+		fixedHeights = heights;
+		this.xs = null;
+		this.ys = null;
+		this.widths = null;
+		this.heights = null;
+		fixedPoint = true;
+		loadSlots(count, names);
+	}
+
+	private void loadSlots(int count, String[] names) {
+		assert (size == 0);
+		assert (names.length > 0 && count <= names.length);
+		slots = new Rectangle[names.length];
+		for (int slot = 0; slot < count; slot++) {
+			slots[slot] = new Rectangle(this, slot);
+		}
+		this.names = names;
+		slotCount = count;
+		size = count;
+		rebuildTree();
+		modCount += 1;
+	}
+
+	/**
+	 * @return A compacted copy with its own handles and copies of their properties, so
+	 *         that it can be written on another thread while this store keeps changing.
+	 */
+	RectangleStore snapshot() {
+		var ret = new RectangleStore(fixedPoint);
+		int capacity = Math.max(size, 1);
+		var copiedNames = new String[capacity];
+		int next = 0;
+		if (fixedPoint) {
+			var copiedXs = new int[capacity];
+			var copiedYs = new int[capacity];
+			var copiedWidths = new int[capacity];
+			var copiedHeights = new int[capacity];
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (slots[slot] != null) {
+					copiedXs[next] = fixedXs[slot];
+					copiedYs[next] = fixedYs[slot];
+					copiedWidths[next] = fixedWidths[slot];
+					copiedHeights[next] = fixedHeights[slot];
+					copiedNames[next] = names[slot];
+					next += 1;
+				}
+			}
+			ret.loadFixed(size, copiedXs, copiedYs, copiedWidths, copiedHeights, copiedNames);
+		} else {
+			var copiedXs = new double[capacity];
+			var copiedYs = new double[capacity];
+			var copiedWidths = new double[capacity];
+			var copiedHeights = new double[capacity];
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (slots[slot] != null) {
+					copiedXs[next] = xs[slot];
+					copiedYs[next] = ys[slot];
+					copiedWidths[next] = widths[slot];
+					copiedHeights[next] = heights[slot];
+					copiedNames[next] = names[slot];
+					next += 1;
+				}
+			}
+			ret.load(size, copiedXs, copiedYs, copiedWidths, copiedHeights, copiedNames);
+		}
+		next = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (slots[slot] != null) {
+				var properties = slots[slot].properties;
+				if (properties != null) {
+					ret.slots[next].properties = new PropertyMap(properties);
+				}
+				next += 1;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Inserts a rectangle so that it ends up at the given index.
+	 */
+	void insert(int index, Rectangle rect) {
+		assert (rect.store == null);
+		assert (index >= 0 && index <= size);
+		if (index == size) {
+			append(rect);
+			return;
+		}
+		if (slotCount == slots.length) {
+			makeRoom();
+		}
+
+		// Shift the neighbours towards the closest empty slot, so that a slot opens up
+		// exactly where the rectangle needs to go.
+		int target = select(index);
+		for (int distance = 1;; distance++) {
+			int left = target - distance;
+			if (left >= 0 && slots[left] == null) {
+				for (int slot = left; slot < target - 1; slot++) {
+					move(slot + 1, slot);
+				}
+				update(left, 1);
+				place(rect, target - 1);
+				break;
+			}
+			int right = target + distance - 1;
+			if (right == slotCount || slots[right] == null) {
+				for (int slot = right; slot > target; slot--) {
+					move(slot - 1, slot);
+				}
+				if (right == slotCount) {
+					slotCount += 1;
+				}
+				update(right, 1);
+				place(rect, target);
+				break;
+			}
+		}
+		size += 1;
+		modCount += 1;
+	}
+
+	/**
+	 * Removes a rectangle from the list.
+	 */
+	void delete(Rectangle rect) {
+		assert (rect.store == this);
+		int slot = rect.slot;
+		rect.detach(getX(slot), getY(slot), getWidth(slot), getHeight(slot), names[slot]);
+		layoutVersion += 1;
+		slots[slot] = null;
+		names[slot] = null;
+		update(slot, -1);
+		size -= 1;
+		modCount += 1;
+
+		// Empty slots at the end are free.
+		while (slotCount > 0 && slots[slotCount - 1] == null) {
+			slotCount -= 1;
+		}
+		int gaps = slotCount - size;
+		if (gaps > size && gaps > MIN_COMPACT_GAPS) {
+			compact();
+		}
+	}
+
+	/**
+	 * Moves a rectangle so that it ends up at the given index.
+	 */
+	void reorder(Rectangle rect, int newIndex) {
+		assert (rect.store == this);
+		delete(rect);
+		insert(newIndex, rect);
+	}
+
+	/**
+	 * @return The index of the first occupied slot at or after the given slot.
+	 */
+	private int skipEmpty(int slot) {
+		while (slot < slotCount && slots[slot] == null) {
+			slot += 1;
+		}
+		return slot;
+	}
+
+	private void place(Rectangle rect, int slot) {
+		assert (slots[slot] == null);
+		slots[slot] = rect;
+		setBounds(slot, rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
+		names[slot] = rect.getName();
+		rect.attach(this, slot);
+		if (slot >= slotCount) {
+			update(slot, 1);
+		}
+	}
+
+	/**
+	 * Moves an occupied slot into an empty one without touching the Fenwick tree.
+	 */
+	private void move(int from, int to) {
+		var rect = slots[from];
+		slots[to] = rect;
+		if (fixedPoint) {
+			fixedXs[to] = fixedXs[from];
+			fixedYs[to] = fixedYs[from];
+			fixedWidths[to] = fixedWidths[from];
+			fixedHeights[to] = fixedHeights[from];
+		} else {
+			xs[to] = xs[from];
+			ys[to] = ys[from];
+			widths[to] = widths[from];
+			heights[to] = heights[from];
+		}
+		names[to] = names[from];
+		slots[from] = null;
+		names[from] = null;
+		rect.slot = to;
+		layoutVersion += 1;
+	}
+
+	/**
+	 * @return A number that changes whenever a rectangle is removed from or moved out of
+	 *         its slot.
+	 */
+	int getLayoutVersion() {
+		return layoutVersion;
+	}
+
+	/**
+	 * Compacts the slots if there are enough empty ones, otherwise grows the array.
+	 */
+	private void makeRoom() {
+		if (slotCount - size > size / 2) {
+			compact();
+		} else {
+			int capacity = slots.length * 2;
+			slots = Arrays.copyOf(slots, capacity);
+			if (fixedPoint) {
+				fixedXs = Arrays.copyOf(fixedXs, capacity);
+				fixedYs = Arrays.copyOf(fixedYs, capacity);
+				fixedWidths = Arrays.copyOf(fixedWidths, capacity);
+				fixedHeights = Arrays.copyOf(fixedHeights, capacity);
+			} else {
+				xs = Arrays.copyOf(xs, capacity);
+				ys = Arrays.copyOf(ys, capacity);
+				widths = Arrays.copyOf(widths, capacity);
+				heights = Arrays.copyOf(heights, capacity);
+			}
+			names = Arrays.copyOf(names, capacity);
+			rebuildTree();
+		}
+	}
+
+	private void compact() {
+		int next = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (slots[slot] != null) {
+				if (slot != next) {
+					move(slot, next);
+				}
+				next += 1;
+			}
+		}
+		assert (next == size);
+		slotCount = size;
+		rebuildTree();
+	}
+
+	private void rebuildTree() {
+		tree = new int[slots.length + 1];
+		for (int i = 1; i <= slots.length; i++) {
+			if (slots[i - 1] != null) {
+				tree[i] += 1;
+			}
+			int parent = i + (i & -i);
+			if (parent <= slots.length) {
+				tree[parent] += tree[i];
+			}
+		}
+	}
+
+	private void update(int slot, int delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * @return The number of occupied slots before the given slot.
+	 */
+	private int prefix(int slot) {
+		int sum = 0;
+		for (int i = slot; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The slot of the rectangle at the given index.
+	 */
+	private int select(int index) {
+		int position = 0;
+		int remaining = index + 1;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = position + step;
+			if (next < tree.length && tree[next] < remaining) {
+				position = next;
+				remaining -= tree[next];
+			}
+		}
+		// position is the 1-based index of the last slot with fewer than index + 1
+		// occupied slots at or before it, which is the 0-based slot we want.
+		return position;
+	}
+}
@@ -0,0 +1,15 @@
+package main;
+
+/**
+ * Something DocumentPainter can draw onto. Coordinates are in pixels, and everything is
+ * drawn in the renderer's current foreground color.
+ */
+public interface Renderer {
+	/**
+	 * Outlines a rectangle. Like SWT and AWT, the outline covers width + 1 by height + 1
+	 * pixels.
+	 */
+	void drawRectangle(int x, int y, int width, int height);
+
+	void drawPoint(int x, int y);
+}
@@ -0,0 +1,65 @@
+package main;
+
+import java.util.HashMap;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.RGB;
+import org.eclipse.wb.swt.SWTResourceManager;
+
+/**
+ * Reference-counted colors, built on SWTResourceManager's cache. Every acquire must be
+ * paired with a release; a color is disposed as soon as nothing holds it, rather than
+ * when the application exits.
+ *
+ * Like the rest of SWT, this may only be used from the display thread.
+ */
+public class ResourcePool {
+
+	private static final HashMap<RGB, Integer> colorReferences = new HashMap<>();
+
+	private ResourcePool() {}
+
+	public static Color acquireColor(int red, int green, int blue) {
+		var rgb = new RGB(red, green, blue);
+		colorReferences.merge(rgb, 1, Integer::sum);
+		return SWTResourceManager.getColor(rgb);
+	}
+
+	public static void releaseColor(Color color) {
+		var rgb = color.getRGB();
+		if (release(rgb)) {
+			SWTResourceManager.disposeColor(rgb);
+		}
+	}
+
+	/**
+	 * @return How many colors are currently allocated.
+	 */
+	public static int getLiveColorCount() {
+		return SWTResourceManager.getColorCount();
+	}
+
+	/**
+	 * @return How many holders the color has.
+	 */
+	public static int getReferenceCount(RGB rgb) {
+		return colorReferences.getOrDefault(rgb, 0);
+	}
+
+	/**
+	 * Drops one reference.
+	 *
+	 * @return True if that was the last one.
+	 */
+	private static boolean release(RGB rgb) {
+		var count = colorReferences.get(rgb);
+		if (count == null) {
+			throw new RuntimeException("Released a color that wasn't acquired: " + rgb);
+		}
+		if (count == 1) {
+			colorReferences.remove(rgb);
+			return true;
+		}
+		colorReferences.put(rgb, count - 1);
+		return false;
+	}
+}
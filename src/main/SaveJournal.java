@@ -0,0 +1,405 @@
+package main;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Records the changes made to a document since it was last fully saved, so that saving
+ * can append them to a sidecar file (the document's path + EXTENSION) instead of
+ * rewriting the whole document.
+ *
+ * Changes are recorded where Document applies them, so doing, undoing and redoing an
+ * action are all journaled the same way. Each change is one JSON object per line, and
+ * refers to rectangles by their index. The first line records the size and modification
+ * time of the main file, so a journal left over from before a full save is ignored.
+ *
+ * A journal only records while it has a main file to append to. Changes it can't
+ * represent (switching to fixed-point) stop it, which forces the next save to be a
+ * full one.
+ *
+ * Changes are recorded on the UI thread, but the file is written by whichever thread
+ * does the save, so access to the journal's state is synchronized.
+ */
+public class SaveJournal {
+
+	public static final String EXTENSION = ".journal";
+
+	private static final int VERSION = 1;
+
+	private static final PropertyMap.PropertyMapTypeAdapter propertiesAdapter = new PropertyMap.PropertyMapTypeAdapter();
+
+	// The journal is compacted once it's half the size of the main file, so the cost of
+	// a full save is spread over at least that many bytes of changes.
+	private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+	// The main file the journal belongs to, or null if not recording.
+	private Path base;
+	private long baseSize;
+	private long baseModified;
+	// Bytes of journal already on disk.
+	private long journalSize;
+
+	// Changes that haven't been appended yet.
+	private StringWriter pending;
+	private JsonWriter writer;
+
+	SaveJournal() {
+		base = null;
+		baseSize = 0;
+		baseModified = 0;
+		journalSize = 0;
+		pending = new StringWriter();
+		writer = new JsonWriter(pending);
+		// One object per line, not a single JSON document.
+		writer.setLenient(true);
+	}
+
+	public static Path journalPath(Path file) {
+		return file.resolveSibling(file.getFileName() + EXTENSION);
+	}
+
+	public synchronized boolean isRecording() {
+		return base != null;
+	}
+
+	/**
+	 * @return True if some changes have been appended to the journal file and not yet
+	 *         compacted.
+	 */
+	public synchronized boolean hasEntries() {
+		return base != null && journalSize > 0;
+	}
+
+	/**
+	 * @return True if saving to the given file can append to the journal instead of
+	 *         writing the whole document.
+	 */
+	synchronized boolean canAppend(Path file) {
+		return base != null && base.equals(file) && journalSize + pending.getBuffer().length() <= compactSize();
+	}
+
+	/**
+	 * @return The changes recorded since the last call, to pass to append().
+	 */
+	synchronized String takePending() {
+		var buffer = pending.getBuffer();
+		var ret = buffer.toString();
+		buffer.setLength(0);
+		return ret;
+	}
+
+	/**
+	 * Appends changes from takePending() to the file's journal.
+	 */
+	synchronized void append(Path file, String changes) throws IOException {
+		if (!file.equals(base)) {
+			// Stopped recording since the changes were taken, so the next save is a full one.
+			return;
+		}
+		var journal = journalPath(file);
+		// A new journal replaces anything stale that was left behind.
+		var mode = journalSize == 0 ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+		try (var output = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+			if (journalSize == 0) {
+				writeHeader(output);
+			}
+			output.append(changes);
+		}
+		journalSize = Files.size(journal);
+	}
+
+	/**
+	 * Called when the whole document is captured to be written to the file. Changes
+	 * after this are recorded against the new file.
+	 *
+	 * @param record If false, stop recording changes.
+	 */
+	synchronized void beginRebase(Path file, boolean record) {
+		pending.getBuffer().setLength(0);
+		journalSize = 0;
+		base = record ? file : null;
+	}
+
+	/**
+	 * Called once the document captured by beginRebase() has been written. Deletes the
+	 * file's old journal, and stamps the new one with the file's size and time.
+	 */
+	synchronized void finishRebase(Path file) throws IOException {
+		Files.deleteIfExists(journalPath(file));
+		if (file.equals(base)) {
+			baseSize = Files.size(file);
+			baseModified = Files.getLastModifiedTime(file).toMillis();
+		}
+	}
+
+	/**
+	 * Stops recording. The next save will write the whole document.
+	 */
+	synchronized void invalidate() {
+		base = null;
+		pending.getBuffer().setLength(0);
+	}
+
+	private long compactSize() {
+		return Math.max(MIN_COMPACT_SIZE, baseSize / 2);
+	}
+
+	// Recording. Document calls these after it applies each change.
+
+	synchronized void recordAdd(Rectangle rect) {
+		if (base == null) {
+			return;
+		}
+		try {
+			writer.beginObject();
+			writer.name("op").value("add");
+			writer.name("name").value(rect.getName());
+			writer.name("x").value(rect.getX());
+			writer.name("y").value(rect.getY());
+			writer.name("width").value(rect.getWidth());
+			writer.name("height").value(rect.getHeight());
+			if (rect.properties != null) {
+				writer.name("properties");
+				propertiesAdapter.write(writer, rect.properties);
+			}
+			writer.endObject();
+		} catch (IOException e) {
+			// StringWriter doesn't throw.
+			throw new UncheckedIOException(e);
+		}
+		endRecord();
+	}
+
+	synchronized void recordRemove(int index) {
+		if (base == null) {
+			return;
+		}
+		try {
+			writer.beginObject();
+			writer.name("op").value("remove");
+			writer.name("index").value(index);
+			writer.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		endRecord();
+	}
+
+	synchronized void recordBounds(int index, Rectangle rect) {
+		if (base == null) {
+			return;
+		}
+		try {
+			writer.beginObject();
+			writer.name("op").value("bounds");
+			writer.name("index").value(index);
+			writer.name("x").value(rect.getX());
+			writer.name("y").value(rect.getY());
+			writer.name("width").value(rect.getWidth());
+			writer.name("height").value(rect.getHeight());
+			writer.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		endRecord();
+	}
+
+	synchronized void recordName(int index, String name) {
+		if (base == null) {
+			return;
+		}
+		try {
+			writer.beginObject();
+			writer.name("op").value("name");
+			writer.name("index").value(index);
+			writer.name("name").value(name);
+			writer.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		endRecord();
+	}
+
+	synchronized void recordMove(int from, int to) {
+		if (base == null) {
+			return;
+		}
+		try {
+			writer.beginObject();
+			writer.name("op").value("move");
+			writer.name("from").value(from);
+			writer.name("to").value(to);
+			writer.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		endRecord();
+	}
+
+	private void endRecord() {
+		var buffer = pending.getBuffer();
+		buffer.append('\n');
+		if (journalSize + buffer.length() > compactSize()) {
+			// A full save is coming anyway, so there's no point holding on to these.
+			invalidate();
+		}
+	}
+
+	private void writeHeader(Appendable output) throws IOException {
+		var header = new StringWriter();
+		var headerWriter = new JsonWriter(header);
+		headerWriter.beginObject();
+		headerWriter.name("journal").value(VERSION);
+		headerWriter.name("baseSize").value(baseSize);
+		headerWriter.name("baseModified").value(baseModified);
+		headerWriter.endObject();
+		output.append(header.getBuffer()).append('\n');
+	}
+
+	/**
+	 * Applies the journal for a file to the document that was just read from it, if there
+	 * is one and it belongs to the file as it is now.
+	 *
+	 * @param resume If true, the document's journal carries on appending to the file.
+	 */
+	static void replay(Document document, Path file, boolean resume) throws IOException {
+		var journal = journalPath(file);
+		var saved = document.getJournal();
+		// Don't record the changes being replayed.
+		saved.invalidate();
+		saved.baseSize = Files.size(file);
+		saved.baseModified = Files.getLastModifiedTime(file).toMillis();
+		saved.journalSize = 0;
+
+		if (Files.exists(journal)) {
+			try (var in = new JsonReader(Files.newBufferedReader(journal, StandardCharsets.UTF_8))) {
+				in.setLenient(true);
+				// A journal left over from before the last full save is ignored, and
+				// overwritten by the next append.
+				if (readHeader(in, saved.baseSize, saved.baseModified)) {
+					var view = new Document.UndoActionView(document);
+					while (in.peek() != JsonToken.END_DOCUMENT) {
+						replayRecord(in, document, view);
+					}
+					saved.journalSize = Files.size(journal);
+					document.setSelectedRectangle(null);
+				}
+			}
+		}
+
+		if (resume) {
+			saved.base = file;
+		}
+	}
+
+	private static boolean readHeader(JsonReader in, long baseSize, long baseModified) throws IOException {
+		if (in.peek() == JsonToken.END_DOCUMENT) {
+			return false;
+		}
+		int version = 0;
+		long size = -1;
+		long modified = -1;
+		in.beginObject();
+		while (in.hasNext()) {
+			switch (in.nextName()) {
+				case "journal":
+					version = in.nextInt();
+					break;
+				case "baseSize":
+					size = in.nextLong();
+					break;
+				case "baseModified":
+					modified = in.nextLong();
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+		if (version != VERSION) {
+			throw new IOException("Unsupported journal version: " + version);
+		}
+		return size == baseSize && modified == baseModified;
+	}
+
+	private static void replayRecord(JsonReader in, Document document, Document.UndoActionView view) throws IOException {
+		String op = null;
+		var values = new Rectangle.Detached();
+		int index = -1;
+		int to = -1;
+		PropertyMap properties = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			switch (in.nextName()) {
+				case "op":
+					op = in.nextString();
+					break;
+				case "index":
+				case "from":
+					index = in.nextInt();
+					break;
+				case "to":
+					to = in.nextInt();
+					break;
+				case "name":
+					values.name = in.nextString();
+					break;
+				case "x":
+					values.x = in.nextDouble();
+					break;
+				case "y":
+					values.y = in.nextDouble();
+					break;
+				case "width":
+					values.width = in.nextDouble();
+					break;
+				case "height":
+					values.height = in.nextDouble();
+					break;
+				case "properties":
+					properties = propertiesAdapter.read(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+
+		if (op == null) {
+			throw new IOException("Journal entry without an op.");
+		}
+		var rectangles = document.getRectangles();
+		switch (op) {
+			case "add":
+				var rect = new Rectangle(values.x, values.y, values.width, values.height);
+				rect.setName(values.name);
+				rect.properties = properties;
+				view.addRectangle(rect);
+				break;
+			case "remove":
+				view.removeRectangle(rectangles.get(index));
+				break;
+			case "bounds":
+				view.setBounds(rectangles.get(index), values.x, values.y, values.width, values.height);
+				break;
+			case "name":
+				view.setName(rectangles.get(index), values.name);
+				break;
+			case "move":
+				document.setPosition(rectangles.get(index), to);
+				break;
+			default:
+				throw new IOException("Unknown journal op: " + op);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Snaps coordinates to the edges and centers of other rectangles, and to a grid.
+ *
+ * The left edges, centers and right edges of every rectangle go into one sorted array,
+ * and the top edges, centers and bottom edges into another, so a query is a binary
+ * search per candidate. The arrays are a snapshot, so an engine should be built when a
+ * drag starts and thrown away when it ends.
+ */
+public class SnapEngine {
+
+	private final double[] xs;
+	private final double[] ys;
+	private final double gridSize;
+
+	/**
+	 * @param exclude  The rectangle being dragged, which shouldn't snap to itself. May be
+	 *                 null.
+	 * @param edges    Whether to snap to other rectangles at all.
+	 * @param gridSize The grid spacing as a ratio, or 0 for no grid.
+	 */
+	public SnapEngine(Document document, Rectangle exclude, boolean edges, double gridSize) {
+		assert (gridSize >= 0);
+		this.gridSize = gridSize;
+		if (!edges) {
+			xs = new double[0];
+			ys = new double[0];
+			return;
+		}
+
+		// Walk the store's columns directly rather than going through each rectangle.
+		var store = document.getRectangles();
+		int count = store.size() - (exclude == null ? 0 : 1);
+		xs = new double[count * 3];
+		ys = new double[count * 3];
+		int next = 0;
+		int slotCount = store.getSlotCount();
+		for (int slot = 0; slot < slotCount; slot++) {
+			var rect = store.getRectangleInSlot(slot);
+			if (rect == null || rect == exclude) {
+				continue;
+			}
+			double x = store.getX(slot);
+			double y = store.getY(slot);
+			double width = store.getWidth(slot);
+			double height = store.getHeight(slot);
+			xs[next] = x;
+			xs[next + 1] = x + width / 2;
+			xs[next + 2] = x + width;
+			ys[next] = y;
+			ys[next + 1] = y + height / 2;
+			ys[next + 2] = y + height;
+			next += 3;
+		}
+		assert (next == xs.length);
+		Arrays.sort(xs);
+		Arrays.sort(ys);
+	}
+
+	/**
+	 * Finds the smallest move that puts one of the candidate x coordinates on another
+	 * rectangle's edge or center. Failing that, snaps to the grid.
+	 *
+	 * @param threshold How far a candidate may move to snap to an edge.
+	 * @return The snap, or null if nothing is close enough.
+	 */
+	public Snap snapX(double threshold, double... candidates) {
+		return snap(xs, threshold, candidates);
+	}
+
+	/**
+	 * The same as snapX(), along the y axis.
+	 */
+	public Snap snapY(double threshold, double... candidates) {
+		return snap(ys, threshold, candidates);
+	}
+
+	private Snap snap(double[] edges, double threshold, double[] candidates) {
+		Snap best = null;
+		for (double candidate : candidates) {
+			double edge = nearest(edges, candidate);
+			double delta = edge - candidate;
+			if (Math.abs(delta) <= threshold && (best == null || Math.abs(delta) < Math.abs(best.delta))) {
+				best = new Snap(delta, edge, true);
+			}
+		}
+		if (best != null || gridSize == 0) {
+			return best;
+		}
+
+		for (double candidate : candidates) {
+			double line = Math.round(candidate / gridSize) * gridSize;
+			double delta = line - candidate;
+			if (best == null || Math.abs(delta) < Math.abs(best.delta)) {
+				best = new Snap(delta, line, false);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The value in the sorted array closest to the target, or NaN if it's empty.
+	 */
+	private static double nearest(double[] sorted, double target) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = Arrays.binarySearch(sorted, target);
+		if (index >= 0) {
+			return sorted[index];
+		}
+		int after = -index - 1;
+		if (after == 0) {
+			return sorted[0];
+		}
+		if (after == sorted.length) {
+			return sorted[sorted.length - 1];
+		}
+		double below = sorted[after - 1];
+		double above = sorted[after];
+		return target - below <= above - target ? below : above;
+	}
+
+	public static class Snap {
+		/**
+		 * How far the snapped candidate moves.
+		 */
+		public final double delta;
+		/**
+		 * Where it ends up.
+		 */
+		public final double position;
+		/**
+		 * True if it snapped to another rectangle, false if to the grid.
+		 */
+		public final boolean toEdge;
+
+		public Snap(double delta, double position, boolean toEdge) {
+			this.delta = delta;
+			this.position = position;
+			this.toEdge = toEdge;
+		}
+	}
+}
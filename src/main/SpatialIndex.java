@@ -0,0 +1,181 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical grid over the ratio space, used to answer point queries without
+ * scanning every rectangle.
+ *
+ * Level L divides the space into 2^L by 2^L cells. Each rectangle is stored at the
+ * finest level whose cells are at least as large as the rectangle, so it never
+ * overlaps more than 2x2 cells. A point query only has to look at one cell per level,
+ * and a region query only at the cells the region covers.
+ */
+public class SpatialIndex {
+
+	// 2^6 = 64 cells per side at the finest level.
+	private static final int LEVELS = 7;
+
+	private ArrayList<Rectangle>[][] levels;
+	private int size;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public SpatialIndex() {
+		levels = new ArrayList[LEVELS][];
+		for (int level = 0; level < LEVELS; level++) {
+			int cellsPerSide = 1 << level;
+			levels[level] = new ArrayList[cellsPerSide * cellsPerSide];
+		}
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a rectangle using its current bounds. The rectangle must be removed before
+	 * its bounds are changed, and re-inserted afterwards.
+	 */
+	public void insert(Rectangle rect) {
+		assert (rect != null);
+		int level = levelFor(rect);
+		int cellsPerSide = 1 << level;
+		var cells = levels[level];
+		int minX = cellFor(rect.getX(), cellsPerSide);
+		int maxX = cellFor(rect.getX() + rect.getWidth(), cellsPerSide);
+		int minY = cellFor(rect.getY(), cellsPerSide);
+		int maxY = cellFor(rect.getY() + rect.getHeight(), cellsPerSide);
+		for (int cellY = minY; cellY <= maxY; cellY++) {
+			for (int cellX = minX; cellX <= maxX; cellX++) {
+				int cell = cellY * cellsPerSide + cellX;
+				if (cells[cell] == null) {
+					cells[cell] = new ArrayList<>(4);
+				}
+				cells[cell].add(rect);
+			}
+		}
+		size += 1;
+	}
+
+	/**
+	 * Removes a rectangle. Its bounds must be the same as when it was inserted.
+	 */
+	public void remove(Rectangle rect) {
+		assert (rect != null);
+		int level = levelFor(rect);
+		int cellsPerSide = 1 << level;
+		var cells = levels[level];
+		int minX = cellFor(rect.getX(), cellsPerSide);
+		int maxX = cellFor(rect.getX() + rect.getWidth(), cellsPerSide);
+		int minY = cellFor(rect.getY(), cellsPerSide);
+		int maxY = cellFor(rect.getY() + rect.getHeight(), cellsPerSide);
+		boolean removed = false;
+		for (int cellY = minY; cellY <= maxY; cellY++) {
+			for (int cellX = minX; cellX <= maxX; cellX++) {
+				var list = cells[cellY * cellsPerSide + cellX];
+				if (list != null) {
+					removed |= removeIdentity(list, rect);
+				}
+			}
+		}
+		assert (removed);
+		size -= 1;
+	}
+
+	/**
+	 * @return Every rectangle that contains the point, in no particular order.
+	 */
+	public ArrayList<Rectangle> getAllAt(double x, double y) {
+		var ret = new ArrayList<Rectangle>();
+		forEachAt(x, y, ret::add);
+		return ret;
+	}
+
+	/**
+	 * Calls the consumer with every rectangle that contains the point. Rectangles are
+	 * visited in no particular order.
+	 */
+	public void forEachAt(double x, double y, Consumer<Rectangle> consumer) {
+		for (int level = 0; level < LEVELS; level++) {
+			int cellsPerSide = 1 << level;
+			var list = levels[level][cellFor(y, cellsPerSide) * cellsPerSide + cellFor(x, cellsPerSide)];
+			if (list == null) {
+				continue;
+			}
+			for (int i = 0; i < list.size(); i++) {
+				var rect = list.get(i);
+				if (rect.contains(x, y)) {
+					consumer.accept(rect);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calls the consumer once with every rectangle that touches the region, edges
+	 * included. Rectangles are visited in no particular order.
+	 */
+	public void forEachIn(double x, double y, double width, double height, Consumer<Rectangle> consumer) {
+		double right = x + width;
+		double bottom = y + height;
+		for (int level = 0; level < LEVELS; level++) {
+			int cellsPerSide = 1 << level;
+			var cells = levels[level];
+			int minX = cellFor(x, cellsPerSide);
+			int maxX = cellFor(right, cellsPerSide);
+			int minY = cellFor(y, cellsPerSide);
+			int maxY = cellFor(bottom, cellsPerSide);
+			for (int cellY = minY; cellY <= maxY; cellY++) {
+				for (int cellX = minX; cellX <= maxX; cellX++) {
+					var list = cells[cellY * cellsPerSide + cellX];
+					if (list == null) {
+						continue;
+					}
+					for (int i = 0; i < list.size(); i++) {
+						var rect = list.get(i);
+						double rectX = rect.getX();
+						double rectY = rect.getY();
+						if (rectX > right || rectX + rect.getWidth() < x || rectY > bottom || rectY + rect.getHeight() < y) {
+							continue;
+						}
+						// A rectangle can be in up to 4 cells. Only report it from the cell
+						// holding the top-left corner of its overlap with the region.
+						if (cellFor(Math.max(rectX, x), cellsPerSide) == cellX && cellFor(Math.max(rectY, y), cellsPerSide) == cellY) {
+							consumer.accept(rect);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static int levelFor(Rectangle rect) {
+		double largest = Math.max(rect.getWidth(), rect.getHeight());
+		int level = 0;
+		// Cells at level + 1 are half the size of cells at level.
+		while (level < LEVELS - 1 && largest <= 1.0 / (1 << (level + 1))) {
+			level += 1;
+		}
+		return level;
+	}
+
+	private static int cellFor(double coord, int cellsPerSide) {
+		int cell = (int) Math.floor(coord * cellsPerSide);
+		return Math.max(0, Math.min(cellsPerSide - 1, cell));
+	}
+
+	private static boolean removeIdentity(ArrayList<Rectangle> list, Rectangle rect) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == rect) {
+				// Order within a cell doesn't matter, so swap with the last element.
+				int last = list.size() - 1;
+				list.set(i, list.get(last));
+				list.remove(last);
+				return true;
+			}
+		}
+		return false;
+	}
+}
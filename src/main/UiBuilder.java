@@ -33,8 +33,14 @@ public class UiBuilder {
 		Select, Place
 	}
 
+	// The grid the "Snap to Grid" menu item turns on, as a ratio.
+	private static final double GRID_SIZE = 0.025;
+
 	private Menu menuBar;
 	private ToolType selectedTool;
+	private boolean showPaintMetrics;
+	private boolean snapToEdges;
+	private boolean snapToGrid;
 	private ArrayList<Editor> editors;
 
 	///////////////////////////
@@ -54,6 +60,9 @@ public class UiBuilder {
 
 	public UiBuilder() {
 		selectedTool = ToolType.Place;
+		showPaintMetrics = false;
+		snapToEdges = true;
+		snapToGrid = false;
 		editors = new ArrayList<>();
 	}
 
@@ -78,6 +87,7 @@ public class UiBuilder {
 	 */
 	public void open() {
 		Display display = Display.getDefault();
+		DocumentManager.setUiExecutor(display::asyncExec);
 		createContents();
 		shlUibuilderUntitled.open();
 		shlUibuilderUntitled.layout();
@@ -134,6 +144,14 @@ public class UiBuilder {
 
 		new MenuItem(menu_1, SWT.SEPARATOR);
 
+		MenuItem menuIncrementalSaves = new MenuItem(menu_1, SWT.CHECK);
+		menuIncrementalSaves.setText("&Incremental Saves");
+
+		MenuItem menuKeepUndoHistory = new MenuItem(menu_1, SWT.CHECK);
+		menuKeepUndoHistory.setText("&Keep Undo History");
+
+		new MenuItem(menu_1, SWT.SEPARATOR);
+
 		MenuItem menuExit = new MenuItem(menu_1, SWT.NONE);
 		menuExit.setText("E&xit");
 		menuExit.setAccelerator(SWT.CONTROL | 'Q');
@@ -160,6 +178,38 @@ public class UiBuilder {
 		menuDelete.setText("D&elete");
 		menuDelete.setAccelerator(SWT.DEL);
 
+		MenuItem mntmView = new MenuItem(menuBar, SWT.CASCADE);
+		mntmView.setText("&View");
+
+		Menu menu_4 = new Menu(mntmView);
+		mntmView.setMenu(menu_4);
+
+		MenuItem menuZoomIn = new MenuItem(menu_4, SWT.NONE);
+		menuZoomIn.setText("Zoom &In");
+		menuZoomIn.setAccelerator(SWT.CONTROL | '=');
+
+		MenuItem menuZoomOut = new MenuItem(menu_4, SWT.NONE);
+		menuZoomOut.setText("Zoom &Out");
+		menuZoomOut.setAccelerator(SWT.CONTROL | '-');
+
+		MenuItem menuResetView = new MenuItem(menu_4, SWT.NONE);
+		menuResetView.setText("&Reset View");
+		menuResetView.setAccelerator(SWT.CONTROL | '0');
+
+		new MenuItem(menu_4, SWT.SEPARATOR);
+
+		MenuItem menuPaintMetrics = new MenuItem(menu_4, SWT.CHECK);
+		menuPaintMetrics.setText("Paint &Metrics");
+
+		new MenuItem(menu_4, SWT.SEPARATOR);
+
+		MenuItem menuSnapToEdges = new MenuItem(menu_4, SWT.CHECK);
+		menuSnapToEdges.setText("Snap to &Edges");
+		menuSnapToEdges.setSelection(true);
+
+		MenuItem menuSnapToGrid = new MenuItem(menu_4, SWT.CHECK);
+		menuSnapToGrid.setText("Snap to &Grid");
+
 		MenuItem mntmTools = new MenuItem(menuBar, SWT.CASCADE);
 		mntmTools.setText("&Tools");
 
@@ -233,10 +283,21 @@ public class UiBuilder {
 		menuExit.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onExit));
 		menuClose.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onClose));
 		menuCloseAll.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onCloseAll));
+		menuIncrementalSaves.setSelection(DocumentManager.isIncrementalSaving());
+		menuIncrementalSaves.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->DocumentManager.setIncrementalSaving(menuIncrementalSaves.getSelection())));
+		menuKeepUndoHistory.setSelection(DocumentManager.isKeepingUndoHistory());
+		menuKeepUndoHistory.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->DocumentManager.setKeepingUndoHistory(menuKeepUndoHistory.getSelection())));
 
 		menuUndo.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onUndo));
 		menuRedo.addSelectionListener(SelectionListener.widgetSelectedAdapter(this::onRedo));
 
+		menuZoomIn.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->getCurrentEditor().zoomIn()));
+		menuZoomOut.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->getCurrentEditor().zoomOut()));
+		menuResetView.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->getCurrentEditor().resetView()));
+		menuPaintMetrics.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->setShowPaintMetrics(menuPaintMetrics.getSelection())));
+		menuSnapToEdges.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->setSnapToEdges(menuSnapToEdges.getSelection())));
+		menuSnapToGrid.addSelectionListener(SelectionListener.widgetSelectedAdapter(e->setSnapToGrid(menuSnapToGrid.getSelection())));
+
 		var onSelect = SelectionListener.widgetSelectedAdapter(e->setSelectedTool(ToolType.Select));
 		var onPlace = SelectionListener.widgetSelectedAdapter(e->setSelectedTool(ToolType.Place));
 		menuSelect.addSelectionListener(onSelect);
@@ -258,7 +319,7 @@ public class UiBuilder {
 		var selectionListener = DocumentManager.addSelectionListener(this::onDocumentSelected);
 
 		var docSelectionListener = DocumentManager.addCurrentDocumentSelectionListener(rect->updateCurrentDocumentMenus());
-		var docUndoListener = DocumentManager.addCurrentDocumentUndoActionListener(action->updateCurrentDocumentMenus());
+		var docUndoListener = DocumentManager.addCurrentDocumentUndoActionListener(event->updateCurrentDocumentMenus());
 
 		// Cleanup listeners (though this shouldn't be necessary).
 		shlUibuilderUntitled.addDisposeListener(e-> {
@@ -275,6 +336,11 @@ public class UiBuilder {
 		Editor editor = new Editor(documentTabs, document);
 		editors.add(editor);
 		editor.setCurrentTool(selectedTool);
+		if (showPaintMetrics) {
+			editor.setShowPaintMetrics(true);
+		}
+		editor.setSnapToEdges(snapToEdges);
+		editor.setGridSize(snapToGrid ? GRID_SIZE : 0);
 	}
 
 	private void destroyTab(Document document) {
@@ -289,6 +355,16 @@ public class UiBuilder {
 		throw new RuntimeException("Unable to find an editor for document:" + document);
 	}
 
+	private Editor getCurrentEditor() {
+		var document = DocumentManager.getCurrentDocument();
+		for (var editor : editors) {
+			if (editor.getDocument() == document) {
+				return editor;
+			}
+		}
+		throw new RuntimeException("Unable to find an editor for document:" + document);
+	}
+
 	private void onTabSelected(SelectionEvent e) {
 		assert (documentTabs.getSelection().length == 1);
 		var tab = documentTabs.getSelection()[0];
@@ -323,7 +399,11 @@ public class UiBuilder {
 		var dialog = makeDialog(SWT.OPEN);
 		String choice = dialog.open();
 		if (choice != null) {
-			DocumentManager.openDocument(new File(choice));
+			DocumentManager.openDocumentAsync(new File(choice)).whenCompleteAsync((document, error)-> {
+				if (error != null) {
+					showError("Couldn't open " + choice + ".", error);
+				}
+			}, Display.getDefault()::asyncExec);
 		}
 	}
 
@@ -334,14 +414,28 @@ public class UiBuilder {
 				return;
 			}
 		}
-		DocumentManager.saveDocument(DocumentManager.getCurrentDocument());
+		var document = DocumentManager.getCurrentDocument();
+		DocumentManager.saveDocumentAsync(document).whenCompleteAsync((result, error)-> {
+			if (error != null) {
+				showError("Couldn't save " + document.getFileName() + ".", error);
+			}
+		}, Display.getDefault()::asyncExec);
 	}
 
 	private void onSaveAs(SelectionEvent e) {
 		var dialog = makeDialog(SWT.SAVE);
 		String choice = dialog.open();
 		if (choice != null) {
-			DocumentManager.getCurrentDocument().setFile(new File(choice));
+			var document = DocumentManager.getCurrentDocument();
+			document.setFile(new File(choice));
+			// The extension wins; otherwise go by the selected filter.
+			if (choice.toLowerCase().endsWith(BinaryDocumentCodec.EXTENSION)) {
+				document.setFileFormat(Document.FileFormat.Binary);
+			} else if (choice.toLowerCase().endsWith(".json") || dialog.getFilterIndex() != 1) {
+				document.setFileFormat(Document.FileFormat.Json);
+			} else {
+				document.setFileFormat(Document.FileFormat.Binary);
+			}
 			onSave(e);
 		}
 	}
@@ -394,6 +488,27 @@ public class UiBuilder {
 		}
 	}
 
+	private void setShowPaintMetrics(boolean value) {
+		showPaintMetrics = value;
+		for (var editor : editors) {
+			editor.setShowPaintMetrics(value);
+		}
+	}
+
+	private void setSnapToEdges(boolean value) {
+		snapToEdges = value;
+		for (var editor : editors) {
+			editor.setSnapToEdges(value);
+		}
+	}
+
+	private void setSnapToGrid(boolean value) {
+		snapToGrid = value;
+		for (var editor : editors) {
+			editor.setGridSize(value ? GRID_SIZE : 0);
+		}
+	}
+
 	private FileDialog makeDialog(int type) {
 		var dialog = new FileDialog(shlUibuilderUntitled, type);
 		String wildcard;
@@ -403,7 +518,10 @@ public class UiBuilder {
 			wildcard = "*";
 		}
 		dialog.setFilterExtensions(new String[]{
-			"*.json", wildcard
+			"*.json", "*" + BinaryDocumentCodec.EXTENSION, wildcard
+		});
+		dialog.setFilterNames(new String[]{
+			"JSON Documents (*.json)", "Binary Documents (*" + BinaryDocumentCodec.EXTENSION + ")", "All Files"
 		});
 		var currentFile = DocumentManager.getCurrentDocument();
 		if (currentFile.getFilePath() != null) {
@@ -412,6 +530,17 @@ public class UiBuilder {
 		return dialog;
 	}
 
+	private void showError(String message, Throwable error) {
+		if (shlUibuilderUntitled.isDisposed()) {
+			return;
+		}
+		var cause = error.getCause() != null ? error.getCause() : error;
+		var dialog = new MessageBox(shlUibuilderUntitled, SWT.ICON_ERROR | SWT.OK);
+		dialog.setMessage(message + "\n\n" + cause);
+		dialog.setText(shlUibuilderUntitled.getText());
+		dialog.open();
+	}
+
 	private boolean closeWithoutSaving(Document document) {
 		if (document.hasUnsavedChanges()) {
 			// Select the document first.
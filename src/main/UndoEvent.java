@@ -0,0 +1,137 @@
+package main;
+
+import java.util.Collections;
+import java.util.List;
+import actions.UndoAction;
+
+/**
+ * Tells UndoStack listeners what just happened: which action, whether it was done,
+ * undone or redone, and every change it made to the document, in the order it made
+ * them. Applying the changes in order to a copy of the rectangle list keeps the copy
+ * in step, so listeners don't have to rebuild everything.
+ */
+public class UndoEvent {
+
+	private final UndoAction action;
+	private final Direction direction;
+	private final List<Change> changes;
+
+	public UndoEvent(UndoAction action, Direction direction, List<Change> changes) {
+		assert (direction != null);
+		this.action = action;
+		this.direction = direction;
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	/**
+	 * @return The action, or for a committed transaction, the whole transaction. When an
+	 *         action was merged into the one before it, this is the action that was
+	 *         pushed, not the merged one. Null after UndoStack.jumpTo(), which can span
+	 *         any number of actions.
+	 */
+	public UndoAction getAction() {
+		return action;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return True if any of the changes were to the rectangle.
+	 */
+	public boolean touches(Rectangle rect) {
+		for (var change : changes) {
+			if (change.rectangle == rect) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Do covers pushes and committed transactions.
+	 */
+	public static enum Direction {
+		Do, Undo, Redo
+	}
+
+	public static enum Kind {
+		Added, Removed, Bounds, Renamed
+	}
+
+	public static class Change {
+		public final Kind kind;
+		public final Rectangle rectangle;
+		/**
+		 * The rectangle's index in the document: after it was added, before it was
+		 * removed, or when it was changed.
+		 */
+		public final int index;
+
+		/**
+		 * The bounds before and after a Bounds change. For the other kinds, both are the
+		 * rectangle's bounds.
+		 */
+		public final double oldX;
+		public final double oldY;
+		public final double oldWidth;
+		public final double oldHeight;
+		public final double newX;
+		public final double newY;
+		public final double newWidth;
+		public final double newHeight;
+
+		/**
+		 * The name before a Renamed change, or null.
+		 */
+		public final String oldName;
+
+		private Change(Kind kind, Rectangle rectangle, int index, double oldX, double oldY, double oldWidth, double oldHeight, String oldName) {
+			this.kind = kind;
+			this.rectangle = rectangle;
+			this.index = index;
+			this.oldX = oldX;
+			this.oldY = oldY;
+			this.oldWidth = oldWidth;
+			this.oldHeight = oldHeight;
+			newX = rectangle.getX();
+			newY = rectangle.getY();
+			newWidth = rectangle.getWidth();
+			newHeight = rectangle.getHeight();
+			this.oldName = oldName;
+		}
+
+		/**
+		 * Records a change that has just been made.
+		 */
+		static Change added(Rectangle rect, int index) {
+			return new Change(Kind.Added, rect, index, rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight(), null);
+		}
+
+		/**
+		 * Records a change that is about to be made.
+		 */
+		static Change removed(Rectangle rect, int index) {
+			return new Change(Kind.Removed, rect, index, rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight(), null);
+		}
+
+		/**
+		 * Records a change that has just been made.
+		 */
+		static Change bounds(Rectangle rect, int index, double oldX, double oldY, double oldWidth, double oldHeight) {
+			return new Change(Kind.Bounds, rect, index, oldX, oldY, oldWidth, oldHeight, null);
+		}
+
+		/**
+		 * Records a change that has just been made.
+		 */
+		static Change renamed(Rectangle rect, int index, String oldName) {
+			return new Change(Kind.Renamed, rect, index, rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight(), oldName);
+		}
+	}
+}
@@ -0,0 +1,979 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import actions.CompoundAction;
+import actions.CreateRectangle;
+import actions.RenameRectangleAction;
+import actions.ResizeRectangleAction;
+import actions.UndoAction;
+
+/**
+ * A file of undo history. It's either a temp file that an UndoStack spills old actions
+ * to, or a sidecar next to a document (the document's path + EXTENSION) that keeps the
+ * document's history between sessions.
+ *
+ * Each action is written once, as a record, and read back by its offset. Records refer
+ * to rectangles by an id from a table kept here rather than by index, since rectangles
+ * can be reordered outside of the undo history. The table holds one reference per
+ * rectangle however many actions refer to it, and undoing back into spilled history
+ * gets the same Rectangle objects rather than copies.
+ *
+ * Records of actions that were truncated out of the history stay in the file until
+ * compact() drops them, which also drops the rectangles only they referred to. A
+ * sidecar isn't compacted in place; UndoStack rebuilds it into a new one when saving.
+ *
+ * Each time the document is saved, a sidecar gets a save record mapping every id to the
+ * rectangle's index in the saved document, or to its contents if it isn't in the
+ * document. Once the document has been written, the header is pointed at that record
+ * and stamped with the document's size and modification time, so a sidecar that
+ * doesn't belong to the file on disk is ignored. Opening a sidecar only reads the
+ * header; the records aren't read until the history is needed.
+ *
+ * The save record is written on the save's I/O thread while the UI thread may still be
+ * appending actions, so access to the file is synchronized. Actions that land before
+ * the save record but after the history it describes are ignored on open.
+ *
+ * The layout (all numbers big-endian) is:
+ *
+ * <pre>
+ * header:        "UIBH", version (int32), the last save record's offset (int64, -1 for
+ *                none), then at that save: the history's length, the id count and
+ *                the document's rectangle count (int32), and the document file's size
+ *                and modification time (int64)
+ * records:       length (int32), then a type byte and:
+ * RECORD_ACTION: its index in the history (int32), then the action
+ * RECORD_SAVE:   the offset the saved history ends at (int64), id count (int32), then
+ *                for each id the rectangle's index in the document (int32), or -1
+ *                followed by its x, y, width, height (float64), name and properties as
+ *                JSON
+ * </pre>
+ *
+ * Actions start with a tag byte:
+ *
+ * <pre>
+ * TAG_CREATE:    rectangle id (int32), whether it's creating (one byte), the x, y,
+ *                width and height it's added with (float64), and its name
+ * TAG_RESIZE:    rectangle id (int32), a byte with a bit set for each of x, y, width
+ *                and height that changed, the old x, y, width and height (float64),
+ *                then the new value of each one that changed (float64)
+ * TAG_RENAME:    rectangle id (int32), old name, new name
+ * TAG_COMPOUND:  action count (int32), then each action
+ * </pre>
+ *
+ * Strings are a UTF-8 length (int32, -1 for null) followed by the bytes.
+ */
+public class UndoHistoryFile {
+
+	public static final String EXTENSION = ".history";
+
+	private static final byte[] MAGIC = {
+		'U', 'I', 'B', 'H'
+	};
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 44;
+	// Where the document's size and modification time are in the header.
+	private static final int STAMP_OFFSET = 28;
+
+	private static final byte RECORD_ACTION = 0;
+	private static final byte RECORD_SAVE = 1;
+	// Every record has at least its length, its type and an int32.
+	private static final int MIN_RECORD_SIZE = 9;
+	// A save record's length, type and history end.
+	private static final int SAVE_PREFIX_SIZE = 13;
+	// How much readOpenedHistory() reads at a time.
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte TAG_CREATE = 0;
+	private static final byte TAG_RESIZE = 1;
+	private static final byte TAG_RENAME = 2;
+	private static final byte TAG_COMPOUND = 3;
+
+	// Rough heap sizes, assuming compressed references.
+	private static final int OBJECT_HEADER = 16;
+	private static final int STRING_OVERHEAD = 40;
+	private static final int TABLE_ENTRY = 40;
+
+	private static final PropertyMap.PropertyMapTypeAdapter propertiesAdapter = new PropertyMap.PropertyMapTypeAdapter();
+
+	private Path path;
+	// The document this is the sidecar of, or null for a temp file.
+	private final Path document;
+	private final FileChannel channel;
+	private long size;
+	// The number of action records, including ones for entries that have since been
+	// truncated away.
+	private int recordCount;
+
+	private final IdentityHashMap<Rectangle, Integer> ids;
+	private final ArrayList<Rectangle> rectangles;
+
+	// What the header said when an existing sidecar was opened: the save record the
+	// history was read up to, where the history it describes ends, and its length.
+	private long openedSave;
+	private long openedHistoryEnd;
+	private int openedLength;
+	// The offsets readOpenedHistory() found, or null if it hasn't been called.
+	private long[] openedOffsets;
+	// The rectangles of the document as it was opened, which the save record's indices
+	// refer to. Null once the ids from the earlier session have been resolved.
+	private Rectangle[] openedRectangles;
+
+	private UndoHistoryFile(Path path, Path document, FileChannel channel, long size) {
+		this.path = path;
+		this.document = document;
+		this.channel = channel;
+		this.size = size;
+		recordCount = 0;
+		ids = new IdentityHashMap<>();
+		rectangles = new ArrayList<>();
+		openedSave = -1;
+		openedHistoryEnd = -1;
+		openedLength = 0;
+		openedOffsets = null;
+		openedRectangles = null;
+	}
+
+	public static Path historyPath(Path file) {
+		return file.resolveSibling(file.getFileName() + EXTENSION);
+	}
+
+	/**
+	 * Makes a temp file to spill history to. It's deleted when closed.
+	 */
+	public static UndoHistoryFile createTemp() {
+		try {
+			var path = Files.createTempFile("uibuilder-undo", ".tmp");
+			path.toFile().deleteOnExit();
+			var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			var ret = new UndoHistoryFile(path, null, channel, HEADER_SIZE);
+			ret.writeHeader(-1, 0, 0, 0);
+			return ret;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Starts an empty sidecar for the document file. It's written next to the file's
+	 * sidecar, and replaces it when moveIntoPlace() is called.
+	 */
+	public static UndoHistoryFile create(Path file) {
+		var path = file.resolveSibling(file.getFileName() + EXTENSION + ".new");
+		try {
+			var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+			var ret = new UndoHistoryFile(path, file.toAbsolutePath().normalize(), channel, HEADER_SIZE);
+			ret.writeHeader(-1, 0, 0, 0);
+			return ret;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Opens the sidecar of a document that was just read from the file. Only the header
+	 * is read. Anything written after the last save is thrown away, since it doesn't
+	 * apply to the document as it was saved.
+	 *
+	 * @return The sidecar, or null if there isn't one with any history in it, or it
+	 *         doesn't match the file.
+	 */
+	public static UndoHistoryFile open(Path file, Document loaded) {
+		var path = historyPath(file);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			var header = ByteBuffer.allocate(HEADER_SIZE);
+			if (channel.size() < HEADER_SIZE || channel.read(header, 0) != HEADER_SIZE) {
+				channel.close();
+				return null;
+			}
+			header.flip();
+			var magic = new byte[MAGIC.length];
+			header.get(magic);
+			int version = header.getInt();
+			long lastSave = header.getLong();
+			int length = header.getInt();
+			int idCount = header.getInt();
+			int rectangleCount = header.getInt();
+			long fileSize = header.getLong();
+			long fileModified = header.getLong();
+			if (!Arrays.equals(magic, MAGIC) || version != VERSION || lastSave == -1 || rectangleCount != loaded.getRectangles().size()
+				|| fileSize != Files.size(file) || fileModified != Files.getLastModifiedTime(file).toMillis()) {
+				channel.close();
+				return null;
+			}
+
+			var record = ByteBuffer.allocate(SAVE_PREFIX_SIZE);
+			channel.read(record, lastSave);
+			long end = lastSave + 4 + record.getInt(0);
+			channel.truncate(end);
+
+			var ret = new UndoHistoryFile(path, file.toAbsolutePath().normalize(), channel, end);
+			ret.openedSave = lastSave;
+			ret.openedHistoryEnd = record.getLong(5);
+			ret.openedLength = length;
+			// At least; readOpenedHistory() counts them.
+			ret.recordCount = length;
+			ret.openedRectangles = loaded.getRectangles().toArray(new Rectangle[rectangleCount]);
+			// Ids from the earlier session are filled in when they're resolved.
+			ret.rectangles.addAll(Collections.nCopies(idCount, null));
+			return ret;
+		} catch (IOException e) {
+			// The history is a convenience; a broken one shouldn't stop the document opening.
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// Ignore it.
+				}
+			}
+			return null;
+		}
+	}
+
+	public boolean isTemporary() {
+		return document == null;
+	}
+
+	/**
+	 * @return True if this is the sidecar of the given document file.
+	 */
+	public boolean isSidecarOf(Path file) {
+		return document != null && document.equals(file.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * @return The length of the history as it was when the document was saved, if this
+	 *         sidecar was opened with history in it; otherwise 0.
+	 */
+	public int getOpenedLength() {
+		return openedLength;
+	}
+
+	/**
+	 * Finds the records of the history that was in the sidecar when it was opened. The
+	 * file is only scanned the first time.
+	 *
+	 * @return The offset of each of the getOpenedLength() actions. Don't modify it.
+	 */
+	public synchronized long[] readOpenedHistory() {
+		if (openedOffsets != null) {
+			return openedOffsets;
+		}
+		resolveOpenedIds();
+		var ret = new long[openedLength];
+		Arrays.fill(ret, -1);
+		// The opened length was counted until now.
+		int found = 0;
+		try {
+			// Walk every record up to the save. Later records for the same index replace
+			// earlier ones, the same as pushes did. This reads through a heap buffer rather
+			// than mapping the file, since Windows won't truncate a file while a mapping of
+			// it is alive.
+			var buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+			buffer.limit(0);
+			long bufferStart = HEADER_SIZE;
+			long offset = HEADER_SIZE;
+			while (offset < openedHistoryEnd) {
+				if (offset + MIN_RECORD_SIZE > bufferStart + buffer.limit()) {
+					buffer.clear();
+					buffer.limit((int) Math.min(SCAN_BUFFER_SIZE, openedHistoryEnd - offset));
+					readFully(buffer, offset);
+					bufferStart = offset;
+				}
+				int at = (int) (offset - bufferStart);
+				int length = buffer.getInt(at);
+				if (buffer.get(at + 4) == RECORD_ACTION) {
+					found += 1;
+					int index = buffer.getInt(at + 5);
+					if (index < openedLength) {
+						ret[index] = offset;
+					}
+				}
+				offset += 4 + length;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (long offset : ret) {
+			if (offset == -1) {
+				throw new RuntimeException("Undo history " + path + " is missing actions");
+			}
+		}
+		recordCount += found - openedLength;
+		openedOffsets = ret;
+		return ret;
+	}
+
+	/**
+	 * Appends an action.
+	 *
+	 * @param index Its position in the history.
+	 * @return The offset to read it back with.
+	 */
+	public synchronized long write(UndoAction action, int index) {
+		recordCount += 1;
+		return append(encodeRecord(action, index));
+	}
+
+	/**
+	 * Reads back an action written by write().
+	 */
+	public synchronized UndoAction read(long offset) {
+		assert (offset >= HEADER_SIZE && offset < size);
+		try {
+			var length = ByteBuffer.allocate(4);
+			readFully(length, offset);
+			var buffer = ByteBuffer.allocate(length.getInt(0));
+			readFully(buffer, offset + 4);
+			buffer.flip();
+			if (buffer.get() != RECORD_ACTION) {
+				throw new RuntimeException("Undo history " + path + " has no action at " + offset);
+			}
+			// Skip the index.
+			buffer.getInt();
+			var ret = decode(buffer, offset, rectangles);
+			assert (!buffer.hasRemaining());
+			return ret;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Throws away every record but the given actions of a temp file, sliding them down
+	 * over the gaps, and rebuilds the rectangle table from just the rectangles they refer
+	 * to.
+	 *
+	 * @param offsets The offset of each action in the history, or -1 if it isn't in the
+	 *                file. Each is replaced with the action's new offset.
+	 * @param length  The length of the history.
+	 */
+	public synchronized void compact(long[] offsets, int length) {
+		assert (isTemporary());
+		// Records only ever move towards the start, so going in file order never
+		// overwrites one that hasn't been moved yet.
+		var order = new ArrayList<Integer>();
+		for (int i = 0; i < length; i++) {
+			if (offsets[i] != -1) {
+				assert (offsets[i] >= HEADER_SIZE && offsets[i] < size);
+				order.add(i);
+			}
+		}
+		order.sort(Comparator.comparingLong(i -> offsets[i]));
+
+		var oldRectangles = new ArrayList<>(rectangles);
+		ids.clear();
+		rectangles.clear();
+		writeHeader(-1, 0, 0, 0);
+		long end = HEADER_SIZE;
+		try {
+			for (int index : order) {
+				var recordLength = ByteBuffer.allocate(4);
+				readFully(recordLength, offsets[index]);
+				var record = ByteBuffer.allocate(recordLength.getInt(0));
+				readFully(record, offsets[index] + 4);
+				record.flip();
+				// Skip the type and the index.
+				record.position(5);
+				var buffer = encodeRecord(decode(record, offsets[index], oldRectangles), index);
+				offsets[index] = end;
+				while (buffer.hasRemaining()) {
+					end += channel.write(buffer, end);
+				}
+			}
+			channel.truncate(end);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		size = end;
+		recordCount = order.size();
+	}
+
+	/**
+	 * Captures where each rectangle the file, and the given actions, refer to is in the
+	 * document, for writeSave() to use on another thread. Rectangles that aren't in the
+	 * document are copied, since the UI thread may go on to change them.
+	 *
+	 * @param source  The file the history is in, or null.
+	 * @param actions Actions that aren't in the file yet.
+	 */
+	public static SaveSnapshot snapshot(Document saved, UndoHistoryFile source, UndoAction[] actions) {
+		var store = saved.getRectangles();
+		var ret = new SaveSnapshot(store.size());
+		if (source != null) {
+			synchronized (source) {
+				source.resolveOpenedIds();
+				for (var rect : source.rectangles) {
+					ret.add(rect, store);
+				}
+				ret.idCount = source.rectangles.size();
+			}
+		}
+		for (var action : actions) {
+			forEachRectangle(action, rect->ret.add(rect, store));
+		}
+		return ret;
+	}
+
+	/**
+	 * Appends a save record. The header isn't pointed at it until commitSave(), once the
+	 * document has been written.
+	 *
+	 * @param saved      Where the rectangles were in the document when it was captured.
+	 * @param length     The length of the history at the save.
+	 * @param historyEnd Where the records of the saved history end.
+	 * @param idCount    How many ids the saved history uses.
+	 */
+	public synchronized SavePoint writeSave(SaveSnapshot saved, int length, long historyEnd, int idCount) {
+		assert (!isTemporary());
+		assert (idCount <= rectangles.size());
+		resolveOpenedIds();
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0);
+			out.writeByte(RECORD_SAVE);
+			out.writeLong(historyEnd);
+			out.writeInt(idCount);
+			for (int id = 0; id < idCount; id++) {
+				var rect = rectangles.get(id);
+				var index = saved.indices.get(rect);
+				if (index != null) {
+					out.writeInt(index);
+					continue;
+				}
+				var copy = saved.copies.get(rect);
+				if (copy == null) {
+					throw new RuntimeException("Undo history " + path + " refers to a rectangle that wasn't captured for the save");
+				}
+				out.writeInt(-1);
+				out.writeDouble(copy.getX());
+				out.writeDouble(copy.getY());
+				out.writeDouble(copy.getWidth());
+				out.writeDouble(copy.getHeight());
+				writeString(out, copy.getName());
+				writeString(out, copy.properties == null ? null : propertiesAdapter.toJson(copy.properties));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		var buffer = ByteBuffer.wrap(bytes.toByteArray());
+		buffer.putInt(0, buffer.capacity() - 4);
+		long offset = append(buffer);
+		return new SavePoint(this, offset, length, idCount, saved.rectangleCount);
+	}
+
+	/**
+	 * Points the header at a save record, now that the document it describes is on disk.
+	 */
+	public synchronized void commitSave(SavePoint point) {
+		assert (point.file == this);
+		writeHeader(point.offset, point.length, point.idCount, point.rectangleCount);
+		restamp();
+	}
+
+	/**
+	 * Records the document file's current size and modification time, after it's been
+	 * rewritten without changing what's in it.
+	 */
+	public synchronized void restamp() {
+		assert (!isTemporary());
+		try {
+			var buffer = ByteBuffer.allocate(16);
+			buffer.putLong(Files.size(document));
+			buffer.putLong(Files.getLastModifiedTime(document).toMillis());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, STAMP_OFFSET + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Moves a sidecar made by create() over the file's sidecar.
+	 */
+	public synchronized void moveIntoPlace() {
+		assert (!isTemporary());
+		var target = historyPath(document);
+		try {
+			Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		path = target;
+	}
+
+	/**
+	 * Throws away everything in the file.
+	 */
+	public synchronized void reset() {
+		try {
+			channel.truncate(HEADER_SIZE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		size = HEADER_SIZE;
+		recordCount = 0;
+		writeHeader(-1, 0, 0, 0);
+		ids.clear();
+		rectangles.clear();
+		openedSave = -1;
+		openedHistoryEnd = -1;
+		openedLength = 0;
+		openedOffsets = null;
+		openedRectangles = null;
+	}
+
+	/**
+	 * @return The number of bytes in the file.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of actions written, including ones no longer in the history.
+	 */
+	public synchronized int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return The number of rectangles the records refer to by id.
+	 */
+	public synchronized int getIdCount() {
+		return rectangles.size();
+	}
+
+	/**
+	 * @return Roughly how much heap the rectangle table takes.
+	 */
+	public synchronized long getMemoryUsage() {
+		return (long) rectangles.size() * TABLE_ENTRY;
+	}
+
+	/**
+	 * Closes the file. A temp file is deleted; a sidecar is kept.
+	 */
+	public synchronized void close() {
+		try {
+			channel.close();
+			if (isTemporary()) {
+				Files.deleteIfExists(path);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Closes and deletes the file, for a sidecar that was never moved into place.
+	 */
+	public synchronized void delete() {
+		try {
+			channel.close();
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return Roughly how much heap the action takes, not counting its rectangle.
+	 */
+	public static long estimateSize(UndoAction action) {
+		if (action instanceof ResizeRectangleAction) {
+			// A reference and eight doubles.
+			return OBJECT_HEADER + 8 + 8 * 8;
+		} else if (action instanceof CreateRectangle) {
+			// A reference, a flag and four doubles. The name is shared with the rectangle.
+			return OBJECT_HEADER + 8 + 4 * 8 + 4;
+		} else if (action instanceof RenameRectangleAction) {
+			var rename = (RenameRectangleAction) action;
+			return OBJECT_HEADER + 16 + estimateSize(rename.getOldName()) + estimateSize(rename.getNewName());
+		} else if (action instanceof CompoundAction) {
+			var children = ((CompoundAction) action).getActions();
+			// The action and its array.
+			long ret = OBJECT_HEADER + 8 + OBJECT_HEADER + 4L * children.size();
+			for (var child : children) {
+				ret += estimateSize(child);
+			}
+			return ret;
+		} else {
+			return OBJECT_HEADER + 16;
+		}
+	}
+
+	private static long estimateSize(String value) {
+		return value == null ? 0 : STRING_OVERHEAD + value.length();
+	}
+
+	/**
+	 * Fills in the rectangles behind the ids that came from the earlier session, using
+	 * the save record the sidecar was opened at.
+	 */
+	private void resolveOpenedIds() {
+		if (openedRectangles == null) {
+			return;
+		}
+		try {
+			var length = ByteBuffer.allocate(4);
+			readFully(length, openedSave);
+			var buffer = ByteBuffer.allocate(length.getInt(0));
+			readFully(buffer, openedSave + 4);
+			buffer.flip();
+			if (buffer.get() != RECORD_SAVE) {
+				throw new RuntimeException("Undo history " + path + " has no save record at " + openedSave);
+			}
+			// Skip the history end, which open() read.
+			buffer.getLong();
+			int count = buffer.getInt();
+			assert (count <= rectangles.size());
+			for (int id = 0; id < count; id++) {
+				int index = buffer.getInt();
+				Rectangle rect;
+				if (index == -1) {
+					rect = new Rectangle(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+					rect.setName(getString(buffer));
+					var properties = getString(buffer);
+					if (properties != null) {
+						rect.properties = propertiesAdapter.fromJson(properties);
+					}
+				} else {
+					rect = openedRectangles[index];
+				}
+				rectangles.set(id, rect);
+				// It may already have an id from this session; either one works.
+				ids.putIfAbsent(rect, id);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		openedRectangles = null;
+	}
+
+	private long append(ByteBuffer buffer) {
+		long offset = size;
+		try {
+			while (buffer.hasRemaining()) {
+				size += channel.write(buffer, size);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return offset;
+	}
+
+	private void writeHeader(long lastSave, int length, int idCount, int rectangleCount) {
+		var buffer = ByteBuffer.allocate(STAMP_OFFSET);
+		buffer.put(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(lastSave);
+		buffer.putInt(length);
+		buffer.putInt(idCount);
+		buffer.putInt(rectangleCount);
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int encodedSize(UndoAction action) {
+		if (action instanceof ResizeRectangleAction) {
+			int changed = Integer.bitCount(changedFields((ResizeRectangleAction) action));
+			return 1 + 4 + 1 + 4 * 8 + changed * 8;
+		} else if (action instanceof CreateRectangle) {
+			return 1 + 4 + 1 + 4 * 8 + encodedSize(((CreateRectangle) action).getName());
+		} else if (action instanceof RenameRectangleAction) {
+			var rename = (RenameRectangleAction) action;
+			return 1 + 4 + encodedSize(rename.getOldName()) + encodedSize(rename.getNewName());
+		} else if (action instanceof CompoundAction) {
+			int ret = 1 + 4;
+			for (var child : ((CompoundAction) action).getActions()) {
+				ret += encodedSize(child);
+			}
+			return ret;
+		} else {
+			throw new RuntimeException("Can't write " + action.getClass().getName() + " to the undo history");
+		}
+	}
+
+	private static int encodedSize(String value) {
+		return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	/**
+	 * @return A bit for each of x, y, width and height that the resize changes.
+	 */
+	private static int changedFields(ResizeRectangleAction resize) {
+		int ret = 0;
+		if (resize.getNewX() != resize.getOldX()) {
+			ret |= 1;
+		}
+		if (resize.getNewY() != resize.getOldY()) {
+			ret |= 2;
+		}
+		if (resize.getNewWidth() != resize.getOldWidth()) {
+			ret |= 4;
+		}
+		if (resize.getNewHeight() != resize.getOldHeight()) {
+			ret |= 8;
+		}
+		return ret;
+	}
+
+	private ByteBuffer encodeRecord(UndoAction action, int index) {
+		int length = 1 + 4 + encodedSize(action);
+		var buffer = ByteBuffer.allocate(4 + length);
+		buffer.putInt(length);
+		buffer.put(RECORD_ACTION);
+		buffer.putInt(index);
+		encode(buffer, action);
+		assert (!buffer.hasRemaining());
+		buffer.flip();
+		return buffer;
+	}
+
+	private void encode(ByteBuffer buffer, UndoAction action) {
+		if (action instanceof ResizeRectangleAction) {
+			var resize = (ResizeRectangleAction) action;
+			int changed = changedFields(resize);
+			buffer.put(TAG_RESIZE);
+			buffer.putInt(idFor(resize.getRectangle()));
+			buffer.put((byte) changed);
+			buffer.putDouble(resize.getOldX());
+			buffer.putDouble(resize.getOldY());
+			buffer.putDouble(resize.getOldWidth());
+			buffer.putDouble(resize.getOldHeight());
+			if ((changed & 1) != 0) {
+				buffer.putDouble(resize.getNewX());
+			}
+			if ((changed & 2) != 0) {
+				buffer.putDouble(resize.getNewY());
+			}
+			if ((changed & 4) != 0) {
+				buffer.putDouble(resize.getNewWidth());
+			}
+			if ((changed & 8) != 0) {
+				buffer.putDouble(resize.getNewHeight());
+			}
+		} else if (action instanceof CreateRectangle) {
+			var create = (CreateRectangle) action;
+			buffer.put(TAG_CREATE);
+			buffer.putInt(idFor(create.getRectangle()));
+			buffer.put((byte) (create.isCreating() ? 1 : 0));
+			buffer.putDouble(create.getX());
+			buffer.putDouble(create.getY());
+			buffer.putDouble(create.getWidth());
+			buffer.putDouble(create.getHeight());
+			putString(buffer, create.getName());
+		} else if (action instanceof RenameRectangleAction) {
+			var rename = (RenameRectangleAction) action;
+			buffer.put(TAG_RENAME);
+			buffer.putInt(idFor(rename.getRectangle()));
+			putString(buffer, rename.getOldName());
+			putString(buffer, rename.getNewName());
+		} else {
+			var children = ((CompoundAction) action).getActions();
+			buffer.put(TAG_COMPOUND);
+			buffer.putInt(children.size());
+			for (var child : children) {
+				encode(buffer, child);
+			}
+		}
+	}
+
+	private UndoAction decode(ByteBuffer buffer, long offset, List<Rectangle> table) {
+		byte tag = buffer.get();
+		switch (tag) {
+			case TAG_RESIZE:
+				var resized = table.get(buffer.getInt());
+				int changed = buffer.get();
+				double oldX = buffer.getDouble();
+				double oldY = buffer.getDouble();
+				double oldWidth = buffer.getDouble();
+				double oldHeight = buffer.getDouble();
+				double newX = (changed & 1) != 0 ? buffer.getDouble() : oldX;
+				double newY = (changed & 2) != 0 ? buffer.getDouble() : oldY;
+				double newWidth = (changed & 4) != 0 ? buffer.getDouble() : oldWidth;
+				double newHeight = (changed & 8) != 0 ? buffer.getDouble() : oldHeight;
+				return new ResizeRectangleAction(resized, oldX, oldY, oldWidth, oldHeight, newX, newY, newWidth, newHeight);
+			case TAG_CREATE:
+				var created = table.get(buffer.getInt());
+				boolean isCreating = buffer.get() != 0;
+				double x = buffer.getDouble();
+				double y = buffer.getDouble();
+				double width = buffer.getDouble();
+				double height = buffer.getDouble();
+				return new CreateRectangle(created, isCreating, x, y, width, height, getString(buffer));
+			case TAG_RENAME:
+				var renamed = table.get(buffer.getInt());
+				var oldName = getString(buffer);
+				var newName = getString(buffer);
+				return new RenameRectangleAction(renamed, oldName, newName);
+			case TAG_COMPOUND:
+				int count = buffer.getInt();
+				var children = new ArrayList<UndoAction>(count);
+				for (int i = 0; i < count; i++) {
+					children.add(decode(buffer, offset, table));
+				}
+				return new CompoundAction(children);
+			default:
+				throw new RuntimeException("Corrupt undo history record at " + offset + " in " + path);
+		}
+	}
+
+	/**
+	 * Calls the consumer with the rectangle of each action, counting the children of a
+	 * CompoundAction.
+	 */
+	private static void forEachRectangle(UndoAction action, Consumer<Rectangle> consumer) {
+		if (action instanceof ResizeRectangleAction) {
+			consumer.accept(((ResizeRectangleAction) action).getRectangle());
+		} else if (action instanceof CreateRectangle) {
+			consumer.accept(((CreateRectangle) action).getRectangle());
+		} else if (action instanceof RenameRectangleAction) {
+			consumer.accept(((RenameRectangleAction) action).getRectangle());
+		} else if (action instanceof CompoundAction) {
+			for (var child : ((CompoundAction) action).getActions()) {
+				forEachRectangle(child, consumer);
+			}
+		}
+	}
+
+	private int idFor(Rectangle rect) {
+		var id = ids.get(rect);
+		if (id == null) {
+			id = rectangles.size();
+			ids.put(rect, id);
+			rectangles.add(rect);
+		}
+		return id;
+	}
+
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Undo history " + path + " ended early");
+			}
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			buffer.putInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		var ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return ret;
+	}
+
+	/**
+	 * Where each rectangle was in the document when it was captured for a save: its
+	 * index, or a copy of it if it wasn't in the document.
+	 */
+	public static class SaveSnapshot {
+		private final IdentityHashMap<Rectangle, Integer> indices;
+		private final IdentityHashMap<Rectangle, Rectangle> copies;
+		private final int rectangleCount;
+		// How many ids the source file had when it was captured.
+		private int idCount;
+
+		private SaveSnapshot(int rectangleCount) {
+			indices = new IdentityHashMap<>();
+			copies = new IdentityHashMap<>();
+			this.rectangleCount = rectangleCount;
+			idCount = 0;
+		}
+
+		/**
+		 * @return How many ids the source file had when it was captured.
+		 */
+		public int getIdCount() {
+			return idCount;
+		}
+
+		private void add(Rectangle rect, RectangleStore store) {
+			if (indices.containsKey(rect) || copies.containsKey(rect)) {
+				return;
+			}
+			int index = store.indexOf(rect);
+			if (index != -1) {
+				indices.put(rect, index);
+			} else {
+				var copy = new Rectangle(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
+				copy.setName(rect.getName());
+				copy.properties = rect.properties == null ? null : new PropertyMap(rect.properties);
+				copies.put(rect, copy);
+			}
+		}
+	}
+
+	/**
+	 * A save record that's been written, waiting for the document to reach the disk.
+	 */
+	public static class SavePoint {
+		private final UndoHistoryFile file;
+		private final long offset;
+		private final int length;
+		private final int idCount;
+		private final int rectangleCount;
+
+		private SavePoint(UndoHistoryFile file, long offset, int length, int idCount, int rectangleCount) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.idCount = idCount;
+			this.rectangleCount = rectangleCount;
+		}
+	}
+}
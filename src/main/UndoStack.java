@@ -1,90 +1,1048 @@
 package main;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.function.Consumer;
+import actions.CompoundAction;
 import actions.UndoAction;
 import main.Document.UndoActionView;
 
+/**
+ * The undo history of a document.
+ *
+ * Only a window of the history around the cursor is kept in memory, in a ring buffer,
+ * and the window shrinks until its estimated size fits the memory budget. Actions
+ * outside the window are spilled to an UndoHistoryFile instead of being dropped, and
+ * read back one at a time when undo or redo reaches them. Pushing and truncating don't
+ * move any other entries. Once most of the file is actions that were truncated away,
+ * it's compacted.
+ *
+ * Once a document has been saved with its history kept, the file is a sidecar next to
+ * the document instead of a temp file, and every action is written to it once it can
+ * no longer be merged into. Reopening the document picks the history up from the
+ * sidecar, without reading any of it until the first undo past the start of the
+ * session. Saving only captures where the rectangles are in the document on the UI
+ * thread. The sidecar is written along with the document, and if the history has to
+ * be moved to it or compacted, that's done into a new sidecar that's switched to once
+ * the save is done.
+ *
+ * An action pushed soon after the previous one is offered to it with
+ * UndoAction.mergeWith(), so a burst of edits to the same rectangle becomes one entry.
+ * Transactions group any number of actions into one entry explicitly.
+ *
+ * Every so often a push also snapshots the document into a checkpoint, so jumpTo() can
+ * reach any point in the history by restoring the nearest checkpoint and replaying only
+ * the actions between it and the target, rather than stepping through everything in
+ * between.
+ */
 public class UndoStack {
 
-	private ArrayList<UndoAction> actions;
+	// Around 90,000 resizes.
+	public static final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+
+	public static final long DEFAULT_MERGE_WINDOW_MILLIS = 1000;
+
+	// How many entries apart checkpoints start out. The spacing doubles whenever they
+	// outgrow their share of the memory budget.
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 256;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final long UNREAD = -2;
+	// Checkpoints may use this fraction of the memory budget, on top of it.
+	private static final int CHECKPOINT_BUDGET_DIVISOR = 4;
+	// The history file is compacted once it holds more than twice as many actions as
+	// there are entries in it, plus this many.
+	private static final int COMPACTION_SLACK = 64;
+
+	// The window is entries [windowStart, windowStart + count) of the history, with
+	// entry windowStart at ring[ringStart].
+	private UndoAction[] ring;
+	private int ringStart;
+	private int windowStart;
+	private int count;
+	// The total number of entries, in memory or not.
+	private int size;
+	// The history file offset of each entry, -1 if it hasn't been written, or UNREAD if
+	// it's from an earlier session and the sidecar hasn't been read yet. An entry is only
+	// ever written once, even if it's read back and spilled again.
+	private long[] offsets;
+	// How many entries have an offset other than -1.
+	private int writtenCount;
+	// A temp file created the first time something is spilled, or the sidecar.
+	private UndoHistoryFile history;
+	// Whether any offsets are UNREAD.
+	private boolean hasUnreadHistory;
+	// A save that's writing the history file on another thread, or null. The file isn't
+	// compacted until it's finished.
+	private SaveTask pendingSave;
+	// How many entries at the start of the history haven't changed since the pending
+	// save was prepared.
+	private int pendingSaveKept;
+	private long memoryBudget;
+	// The estimated size of the actions in the window.
+	private long windowBytes;
+
+	// In order of position. None are past the end of the history.
+	private ArrayList<Checkpoint> checkpoints;
+	private int checkpointInterval;
+	private long checkpointBytes;
+
+	private long mergeWindowNanos;
+	// When the top action was pushed, or -1 if nothing may be merged into it.
+	private long lastPushNanos;
+
+	// The actions pushed since the outermost beginTransaction(), or null.
+	private ArrayList<UndoAction> transaction;
+	private int transactionDepth;
+	// The changes the transaction's actions have made, for the listeners.
+	private ArrayList<UndoEvent.Change> transactionChanges;
+
 	private int cursor;
 	private UndoActionView view;
-	private ArrayList<Consumer<UndoAction>> undoActionListeners;
+	private ArrayList<Consumer<UndoEvent>> undoActionListeners;
 
 	public UndoStack(UndoActionView view) {
-		actions = new ArrayList<>();
+		this(view, DEFAULT_MEMORY_BUDGET);
+	}
+
+	public UndoStack(UndoActionView view, long memoryBudget) {
+		assert (memoryBudget >= 0);
+		ring = new UndoAction[INITIAL_CAPACITY];
+		ringStart = 0;
+		windowStart = 0;
+		count = 0;
+		size = 0;
+		offsets = new long[INITIAL_CAPACITY];
+		writtenCount = 0;
+		history = null;
+		hasUnreadHistory = false;
+		pendingSave = null;
+		pendingSaveKept = 0;
+		this.memoryBudget = memoryBudget;
+		windowBytes = 0;
+		checkpoints = new ArrayList<>();
+		checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		checkpointBytes = 0;
+		mergeWindowNanos = DEFAULT_MERGE_WINDOW_MILLIS * 1_000_000;
+		lastPushNanos = -1;
+		transaction = null;
+		transactionDepth = 0;
+		transactionChanges = null;
 		cursor = -1;
 		this.view = view;
 		undoActionListeners = new ArrayList<>();
 	}
 
 	public boolean canUndo() {
-		return actions.size() > 0 && cursor >= 0;
+		return size > 0 && cursor >= 0;
 	}
 
 	public boolean canRedo() {
-		return actions.size() > 0 && cursor < actions.size() - 1;
+		return size > 0 && cursor < size - 1;
 	}
 
 	public void undo() {
 		if (!canUndo()) {
 			throw new RuntimeException("No actions to undo");
 		}
-		var action = actions.get(cursor);
+		if (transaction != null) {
+			throw new RuntimeException("Can't undo during a transaction");
+		}
+		writeTop();
+		var action = get(cursor);
 		cursor -= 1;
+		lastPushNanos = -1;
 
 		// Do the action last, so that UndoStack is in a valid state while it runs.
-		action.undoAction(view);
-		notifyListeners(action);
+		var changes = apply(action, true);
+		notifyListeners(new UndoEvent(action, UndoEvent.Direction.Undo, changes));
 	}
 
 	public void redo() {
 		if (!canRedo()) {
 			throw new RuntimeException("No actions to redo");
 		}
+		if (transaction != null) {
+			throw new RuntimeException("Can't redo during a transaction");
+		}
+		writeTop();
+		var action = get(cursor + 1);
 		cursor += 1;
-		var action = actions.get(cursor);
-		action.doAction(view);
-		notifyListeners(action);
+		lastPushNanos = -1;
+		var changes = apply(action, false);
+		notifyListeners(new UndoEvent(action, UndoEvent.Direction.Redo, changes));
 	}
 
 	public void push(UndoAction action) {
-		// Truncate list to cursor position.
-		while (cursor < actions.size() - 1) {
-			actions.remove(actions.size() - 1);
+		if (transaction != null) {
+			// Listeners hear about the whole transaction when it's committed.
+			int last = transaction.size() - 1;
+			var merged = last == -1 ? null : transaction.get(last).mergeWith(action);
+			if (merged != null) {
+				transaction.set(last, merged);
+			} else {
+				transaction.add(action);
+			}
+			transactionChanges.addAll(apply(action, false));
+			return;
 		}
 
-		cursor += 1;
-		actions.add(action);
+		long now = System.nanoTime();
+		if (lastPushNanos != -1 && mergeWindowNanos > 0 && now - lastPushNanos <= mergeWindowNanos) {
+			// Only the action that was just pushed is merged into, so it's at the cursor,
+			// in memory, and hasn't been spilled.
+			int top = (ringStart + cursor - windowStart) % ring.length;
+			assert (cursor == size - 1 && offsets[cursor] == -1);
+			var merged = ring[top].mergeWith(action);
+			if (merged != null) {
+				windowBytes += UndoHistoryFile.estimateSize(merged) - UndoHistoryFile.estimateSize(ring[top]);
+				ring[top] = merged;
+				lastPushNanos = now;
+
+				var changes = apply(action, false);
+				notifyListeners(new UndoEvent(action, UndoEvent.Direction.Do, changes));
+				return;
+			}
+		}
+		lastPushNanos = now;
+		record(action, true);
 
 		// Do the action last, so that UndoStack is in a valid state while it runs.
-		action.doAction(view);
-		notifyListeners(action);
+		var changes = apply(action, false);
+		notifyListeners(new UndoEvent(action, UndoEvent.Direction.Do, changes));
+	}
+
+	/**
+	 * Starts grouping pushed actions. They're still done straight away, but they go into
+	 * the history as one CompoundAction, and listeners are only told once, when the
+	 * transaction is committed. Transactions can be nested; only the outermost commit
+	 * has any effect.
+	 */
+	public void beginTransaction() {
+		if (transactionDepth == 0) {
+			transaction = new ArrayList<>();
+			transactionChanges = new ArrayList<>();
+		}
+		transactionDepth += 1;
+	}
+
+	public void commitTransaction() {
+		if (transactionDepth == 0) {
+			throw new RuntimeException("No transaction to commit");
+		}
+		transactionDepth -= 1;
+		if (transactionDepth > 0) {
+			return;
+		}
+		var actions = transaction;
+		var changes = transactionChanges;
+		transaction = null;
+		transactionChanges = null;
+		if (actions.isEmpty()) {
+			return;
+		}
+
+		UndoAction action;
+		if (actions.size() == 1) {
+			action = actions.get(0);
+		} else {
+			action = new CompoundAction(actions);
+		}
+		// The actions have already been done, so it's too late to checkpoint the state
+		// before them.
+		record(action, false);
+		lastPushNanos = -1;
+		notifyListeners(new UndoEvent(action, UndoEvent.Direction.Do, changes));
+	}
+
+	/**
+	 * Undoes everything pushed since the outermost beginTransaction(), and ends the
+	 * transaction. Listeners aren't told, since they never heard about the changes.
+	 */
+	public void rollbackTransaction() {
+		if (transactionDepth == 0) {
+			throw new RuntimeException("No transaction to roll back");
+		}
+		var actions = transaction;
+		transaction = null;
+		transactionChanges = null;
+		transactionDepth = 0;
+		for (int i = actions.size() - 1; i >= 0; i--) {
+			actions.get(i).undoAction(view);
+		}
+	}
+
+	public boolean isInTransaction() {
+		return transaction != null;
 	}
 
 	/**
-	 * Empty the stack WITHOUT executing any `undo` actions.
+	 * Adds an action to the history after the cursor, without doing it.
+	 *
+	 * @param checkpoint Whether the document is still in the state before the action, so
+	 *                   it can be checkpointed if one is due.
+	 */
+	private void record(UndoAction action, boolean checkpoint) {
+		writeTop();
+		while (!checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1).position > cursor + 1) {
+			removeLastCheckpoint();
+		}
+		if (checkpoint) {
+			int last = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1).position;
+			if (cursor + 1 - last >= checkpointInterval) {
+				addCheckpoint();
+			}
+		}
+
+		// Truncate the history to the cursor position. The window always reaches at
+		// least to the entry after the cursor, so it stays contiguous.
+		for (int i = cursor + 1; i < size; i++) {
+			if (offsets[i] != -1) {
+				writtenCount -= 1;
+			}
+		}
+		size = cursor + 1;
+		pendingSaveKept = Math.min(pendingSaveKept, size);
+		assert (windowStart <= size);
+		while (windowStart + count > size) {
+			removeBack();
+		}
+		if (count == 0) {
+			windowStart = size;
+		}
+		// A sidecar is compacted when it's saved, so its save record stays valid.
+		if (history != null && history.isTemporary() && pendingSave == null) {
+			compactHistory();
+		}
+
+		cursor += 1;
+		size += 1;
+		if (size > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[cursor] = -1;
+		addBack(action);
+		trim(cursor);
+	}
+
+	/**
+	 * Empty the stack WITHOUT executing any `undo` actions. A temp file is deleted, and a
+	 * sidecar is emptied.
 	 */
 	public void clear() {
-		cursor = 0;
-		actions.clear();
+		if (transaction != null) {
+			throw new RuntimeException("Can't clear during a transaction");
+		}
+		finishPendingSave();
+		cursor = -1;
+		lastPushNanos = -1;
+		Arrays.fill(ring, null);
+		ringStart = 0;
+		windowStart = 0;
+		count = 0;
+		size = 0;
+		writtenCount = 0;
+		windowBytes = 0;
+		checkpoints.clear();
+		checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		checkpointBytes = 0;
+		hasUnreadHistory = false;
+		if (history != null) {
+			if (history.isTemporary()) {
+				history.close();
+				history = null;
+			} else {
+				history.reset();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of actions in the history, including spilled ones.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return How many entries of the history are done, from 0 to size().
+	 */
+	public int getPosition() {
+		return cursor + 1;
+	}
+
+	/**
+	 * Undoes or redoes straight to a position in the history, as returned by
+	 * getPosition(). If a checkpoint is much closer to the position than the cursor is,
+	 * the document is restored from it and only the entries in between are replayed.
+	 * Listeners are told once, with every change combined into one event.
+	 */
+	public void jumpTo(int position) {
+		if (position < 0 || position > size) {
+			throw new RuntimeException("Position " + position + " is outside the history");
+		}
+		if (transaction != null) {
+			throw new RuntimeException("Can't jump during a transaction");
+		}
+		int start = cursor + 1;
+		if (position == start) {
+			return;
+		}
+		writeTop();
+		lastPushNanos = -1;
+
+		// A restore is a pass over the whole document, so it has to save more replaying
+		// than the checkpoint spacing to be worth it.
+		var checkpoint = nearestCheckpoint(position);
+		boolean restore = checkpoint != null && Math.abs(position - checkpoint.position) + checkpointInterval < Math.abs(position - start);
+
+		ArrayList<UndoEvent.Change> changes;
+		view.startRecording();
+		try {
+			if (restore) {
+				checkpoint.restore(view);
+				cursor = checkpoint.position - 1;
+			}
+			// Move the cursor before each action, like undo() and redo() do.
+			while (cursor + 1 > position) {
+				var action = get(cursor);
+				cursor -= 1;
+				action.undoAction(view);
+			}
+			while (cursor + 1 < position) {
+				var action = get(cursor + 1);
+				cursor += 1;
+				action.doAction(view);
+			}
+		} finally {
+			changes = view.stopRecording();
+		}
+		if (restore && size > 0) {
+			// Bring the window back to the cursor, so it's contiguous with the end of the
+			// history after the next push truncates it.
+			get(Math.max(cursor, 0));
+		}
+
+		var direction = position < start ? UndoEvent.Direction.Undo : UndoEvent.Direction.Redo;
+		notifyListeners(new UndoEvent(null, direction, changes));
+	}
+
+	/**
+	 * @return The number of checkpoints kept.
+	 */
+	public int getCheckpointCount() {
+		return checkpoints.size();
+	}
+
+	/**
+	 * @return The number of actions that are only in the history file.
+	 */
+	public int getSpilledCount() {
+		return size - count;
+	}
+
+	/**
+	 * @return The number of bytes in the history file.
+	 */
+	public long getHistoryFileSize() {
+		return history == null ? 0 : history.getSize();
+	}
+
+	/**
+	 * Picks up the history kept in the sidecar of a document that was just read from the
+	 * file. Only the sidecar's header is read.
+	 */
+	void openHistory(Document document, Path file) {
+		assert (size == 0 && history == null);
+		history = UndoHistoryFile.open(file, document);
+		if (history == null) {
+			return;
+		}
+		size = history.getOpenedLength();
+		cursor = size - 1;
+		windowStart = size;
+		offsets = new long[Math.max(INITIAL_CAPACITY, size)];
+		Arrays.fill(offsets, 0, size, UNREAD);
+		writtenCount = size;
+		hasUnreadHistory = size > 0;
+	}
+
+	/**
+	 * Records that the document is being saved to the file. Only where the rectangles
+	 * are in the document is captured here; the returned task does the I/O, and can run
+	 * on another thread. finishSave() has to be called once it's done, whether or not
+	 * the save worked. Anything else that saves, clears or closes the history first
+	 * finishes the pending save, so the task has to have run by then.
+	 */
+	SaveTask prepareSave(Document document, Path file) {
+		assert (transaction == null);
+		finishPendingSave();
+		writeTop();
+		// The saved state has to stay an entry boundary.
+		lastPushNanos = -1;
+		SaveTask task;
+		if (history == null || !history.isSidecarOf(file) || needsCompaction()) {
+			// Rebuild the history into a new sidecar.
+			var window = new UndoAction[count];
+			for (int i = 0; i < count; i++) {
+				window[i] = ring[(ringStart + i) % ring.length];
+			}
+			var snapshot = UndoHistoryFile.snapshot(document, history, window);
+			task = new SaveTask(file, history, snapshot, cursor + 1, Arrays.copyOf(offsets, size), windowStart, window);
+		} else {
+			// Every entry is in the sidecar already.
+			var snapshot = UndoHistoryFile.snapshot(document, history, new UndoAction[0]);
+			task = new SaveTask(history, snapshot, cursor + 1, history.getSize());
+		}
+		pendingSave = task;
+		pendingSaveKept = size;
+		return task;
+	}
+
+	/**
+	 * Finishes a save started by prepareSave(), once its task has run. If the history was
+	 * rebuilt into a new sidecar, the entries pushed since are copied over to it, and the
+	 * history switches to it.
+	 */
+	void finishSave(SaveTask task) {
+		if (task != pendingSave) {
+			// Already finished.
+			return;
+		}
+		pendingSave = null;
+		var target = task.target;
+		if (target == null) {
+			return;
+		}
+		if (!task.committed) {
+			target.delete();
+			return;
+		}
+		int kept = pendingSaveKept;
+		System.arraycopy(task.offsets, 0, offsets, 0, kept);
+		writtenCount = kept;
+		for (int i = kept; i < size; i++) {
+			// The top entry is left unwritten if it could still be merged into.
+			if (offsets[i] == -1 && i == cursor) {
+				continue;
+			}
+			UndoAction action;
+			if (i >= windowStart && i < windowStart + count) {
+				action = ring[(ringStart + i - windowStart) % ring.length];
+			} else {
+				action = history.read(offsets[i]);
+			}
+			offsets[i] = target.write(action, i);
+			writtenCount += 1;
+		}
+		if (history != null) {
+			history.close();
+		}
+		history = target;
+		hasUnreadHistory = false;
+		int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+		if (offsets.length > capacity * 2) {
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+	}
+
+	/**
+	 * Call this when the document file was rewritten without changing its contents, so
+	 * the sidecar still matches it.
+	 */
+	void restampHistory(Path file) {
+		finishPendingSave();
+		if (history != null && history.isSidecarOf(file)) {
+			history.restamp();
+		}
+	}
+
+	/**
+	 * Closes the history file. A temp file is deleted; a sidecar is kept.
+	 */
+	public void close() {
+		finishPendingSave();
+		if (history != null) {
+			history.close();
+			history = null;
+		}
+	}
+
+	public long getMergeWindowMillis() {
+		return mergeWindowNanos / 1_000_000;
+	}
+
+	/**
+	 * Sets how soon after the previous push an action has to be pushed to be merged into
+	 * it. 0 turns merging off.
+	 */
+	public void setMergeWindowMillis(long millis) {
+		assert (millis >= 0);
+		mergeWindowNanos = millis * 1_000_000;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets roughly how many bytes of actions to keep in memory. The action next to the
+	 * cursor is always kept, however large it is.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		assert (memoryBudget >= 0);
+		this.memoryBudget = memoryBudget;
+		trim(cursor);
+		thinCheckpoints(0);
+	}
+
+	/**
+	 * @return Roughly how many bytes of heap the history is using: the actions in memory,
+	 *         the ring buffer, the file offsets, the checkpoints, and the history file's
+	 *         rectangle table. Rectangles are shared with the document, so they aren't
+	 *         counted.
+	 */
+	public long getMemoryUsage() {
+		long ret = windowBytes + 16 + 4L * ring.length + 16 + 8L * offsets.length + checkpointBytes;
+		if (history != null) {
+			ret += history.getMemoryUsage();
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets an entry, reading it back from the history file if it's just outside the
+	 * window.
+	 */
+	private UndoAction get(int index) {
+		assert (index >= 0 && index < size);
+		if (offsets[index] == UNREAD) {
+			readHistory();
+		}
+		if (index == windowStart - 1) {
+			addFront(history.read(offsets[index]));
+			trim(index);
+		} else if (index == windowStart + count) {
+			addBack(history.read(offsets[index]));
+			trim(index);
+		} else if (index < windowStart || index > windowStart + count) {
+			// Only jumpTo() lands away from the window. Start a new one there.
+			spillWindow();
+			windowStart = index;
+			addBack(history.read(offsets[index]));
+		}
+		assert (index >= windowStart && index < windowStart + count);
+		return ring[(ringStart + index - windowStart) % ring.length];
+	}
+
+	/**
+	 * Spills entries from whichever end of the window is further from `keep` until the
+	 * window fits the budget.
+	 */
+	private void trim(int keep) {
+		while (windowBytes > memoryBudget && count > 1) {
+			int windowEnd = windowStart + count - 1;
+			int index;
+			if (keep - windowStart > windowEnd - keep) {
+				index = windowStart;
+			} else {
+				index = windowEnd;
+			}
+			if (offsets[index] == -1) {
+				if (history == null) {
+					history = UndoHistoryFile.createTemp();
+				}
+				offsets[index] = history.write(ring[(ringStart + index - windowStart) % ring.length], index);
+				writtenCount += 1;
+			}
+			if (index == windowStart) {
+				removeFront();
+			} else {
+				removeBack();
+			}
+		}
+	}
+
+	/**
+	 * Empties the window, writing anything that isn't in the history file yet.
+	 */
+	private void spillWindow() {
+		for (int i = 0; i < count; i++) {
+			int index = windowStart + i;
+			if (offsets[index] == -1) {
+				if (history == null) {
+					history = UndoHistoryFile.createTemp();
+				}
+				offsets[index] = history.write(ring[(ringStart + i) % ring.length], index);
+				writtenCount += 1;
+			}
+		}
+		Arrays.fill(ring, null);
+		ringStart = 0;
+		count = 0;
+		windowBytes = 0;
+	}
+
+	/**
+	 * Snapshots the document at the current position.
+	 */
+	private void addCheckpoint() {
+		var rectangles = view.getParent().getRectangles();
+		long bytes = Checkpoint.estimateSize(rectangles.size());
+		long limit = memoryBudget / CHECKPOINT_BUDGET_DIVISOR;
+		if (bytes > limit) {
+			return;
+		}
+		thinCheckpoints(bytes);
+		checkpoints.add(new Checkpoint(cursor + 1, rectangles));
+		checkpointBytes += bytes;
+	}
+
+	private void removeLastCheckpoint() {
+		var last = checkpoints.remove(checkpoints.size() - 1);
+		checkpointBytes -= Checkpoint.estimateSize(last.rects.length);
+	}
+
+	/**
+	 * Drops every other checkpoint and doubles the spacing, until there's room for
+	 * `extra` more bytes of them.
+	 */
+	private void thinCheckpoints(long extra) {
+		long limit = memoryBudget / CHECKPOINT_BUDGET_DIVISOR;
+		while (!checkpoints.isEmpty() && checkpointBytes + extra > limit) {
+			var kept = new ArrayList<Checkpoint>();
+			checkpointBytes = 0;
+			for (int i = 1; i < checkpoints.size(); i += 2) {
+				var checkpoint = checkpoints.get(i);
+				kept.add(checkpoint);
+				checkpointBytes += Checkpoint.estimateSize(checkpoint.rects.length);
+			}
+			checkpoints = kept;
+			checkpointInterval *= 2;
+		}
+	}
+
+	/**
+	 * @return The checkpoint closest to the position, or null if there are none.
+	 */
+	private Checkpoint nearestCheckpoint(int position) {
+		Checkpoint ret = null;
+		for (var checkpoint : checkpoints) {
+			if (ret == null || Math.abs(position - checkpoint.position) < Math.abs(position - ret.position)) {
+				ret = checkpoint;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the action at the cursor to the sidecar, if there is one and it hasn't been
+	 * written yet. This is left until the action can no longer be merged into, so a burst
+	 * of merged edits is written once.
+	 */
+	private void writeTop() {
+		if (history != null && !history.isTemporary() && cursor >= 0 && offsets[cursor] == -1) {
+			offsets[cursor] = history.write(ring[(ringStart + cursor - windowStart) % ring.length], cursor);
+			writtenCount += 1;
+		}
+	}
+
+	/**
+	 * Finds the actions from an earlier session in the sidecar.
+	 */
+	private void readHistory() {
+		assert (hasUnreadHistory);
+		var read = history.readOpenedHistory();
+		System.arraycopy(read, 0, offsets, 0, read.length);
+		hasUnreadHistory = false;
 	}
 
-	private void notifyListeners(UndoAction action) {
-		// TODO: There's no way for the listeners to tell whether we're undoing or redoing this action.
+	/**
+	 * The task's run() has to have finished.
+	 */
+	private void finishPendingSave() {
+		if (pendingSave != null) {
+			finishSave(pendingSave);
+		}
+	}
+
+	/**
+	 * @return True once most of the history file's actions are ones that were truncated
+	 *         away.
+	 */
+	private boolean needsCompaction() {
+		return history != null && history.getRecordCount() > 2L * writtenCount + COMPACTION_SLACK;
+	}
+
+	/**
+	 * Compacts a temp history file down to the entries still in the history, once it
+	 * needs it. The rectangle table is rebuilt with it, so rectangles that only the
+	 * discarded actions referred to aren't kept alive.
+	 */
+	private void compactHistory() {
+		if (!needsCompaction()) {
+			return;
+		}
+		if (hasUnreadHistory) {
+			readHistory();
+		}
+		history.compact(offsets, size);
+		int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+		if (offsets.length > capacity * 2) {
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+	}
+
+	private void addFront(UndoAction action) {
+		if (count == ring.length) {
+			grow();
+		}
+		ringStart = (ringStart + ring.length - 1) % ring.length;
+		ring[ringStart] = action;
+		windowStart -= 1;
+		count += 1;
+		windowBytes += UndoHistoryFile.estimateSize(action);
+	}
+
+	private void addBack(UndoAction action) {
+		if (count == ring.length) {
+			grow();
+		}
+		ring[(ringStart + count) % ring.length] = action;
+		count += 1;
+		windowBytes += UndoHistoryFile.estimateSize(action);
+	}
+
+	private void removeFront() {
+		windowBytes -= UndoHistoryFile.estimateSize(ring[ringStart]);
+		ring[ringStart] = null;
+		ringStart = (ringStart + 1) % ring.length;
+		windowStart += 1;
+		count -= 1;
+	}
+
+	private void removeBack() {
+		int last = (ringStart + count - 1) % ring.length;
+		windowBytes -= UndoHistoryFile.estimateSize(ring[last]);
+		ring[last] = null;
+		count -= 1;
+	}
+
+	private void grow() {
+		var newRing = new UndoAction[ring.length * 2];
+		for (int i = 0; i < count; i++) {
+			newRing[i] = ring[(ringStart + i) % ring.length];
+		}
+		ring = newRing;
+		ringStart = 0;
+	}
+
+	/**
+	 * Does or undoes the action, collecting the changes it makes for the listeners.
+	 */
+	private ArrayList<UndoEvent.Change> apply(UndoAction action, boolean undo) {
+		ArrayList<UndoEvent.Change> changes;
+		view.startRecording();
+		try {
+			if (undo) {
+				action.undoAction(view);
+			} else {
+				action.doAction(view);
+			}
+		} finally {
+			changes = view.stopRecording();
+		}
+		return changes;
+	}
+
+	private void notifyListeners(UndoEvent event) {
 		var listeners = new ArrayList<>(undoActionListeners);
 		for (var listener : listeners) {
-			listener.accept(action);
+			listener.accept(event);
 		}
 	}
 
-	public Consumer<UndoAction> addListener(Consumer<UndoAction> listener) {
+	public Consumer<UndoEvent> addListener(Consumer<UndoEvent> listener) {
 		undoActionListeners.add(listener);
 		return listener;
 	}
 
-	public void removeListener(Consumer<UndoAction> listener) {
+	public void removeListener(Consumer<UndoEvent> listener) {
 		undoActionListeners.remove(listener);
 	}
+
+	/**
+	 * The part of saving the history that does the I/O, so that it can run on another
+	 * thread. It either appends a save record to the sidecar the history is already in,
+	 * or writes the whole history to a new sidecar with a save record at the end.
+	 */
+	public static class SaveTask {
+		private final Path file;
+		private final UndoHistoryFile source;
+		private final UndoHistoryFile.SaveSnapshot snapshot;
+		private final int length;
+		// Where the saved history ends in the source, when appending to it.
+		private final long historyEnd;
+		// When rebuilding: the offset of each entry in the source, replaced with its offset
+		// in the target, and the actions in the window, starting at entry windowStart.
+		private final long[] offsets;
+		private final int windowStart;
+		private final UndoAction[] window;
+
+		private UndoHistoryFile target;
+		private UndoHistoryFile.SavePoint point;
+		private boolean committed;
+
+		private SaveTask(UndoHistoryFile source, UndoHistoryFile.SaveSnapshot snapshot, int length, long historyEnd) {
+			this.file = null;
+			this.source = source;
+			this.snapshot = snapshot;
+			this.length = length;
+			this.historyEnd = historyEnd;
+			offsets = null;
+			windowStart = 0;
+			window = null;
+			target = null;
+			point = null;
+			committed = false;
+		}
+
+		private SaveTask(Path file, UndoHistoryFile source, UndoHistoryFile.SaveSnapshot snapshot, int length, long[] offsets, int windowStart,
+			UndoAction[] window) {
+			this.file = file;
+			this.source = source;
+			this.snapshot = snapshot;
+			this.length = length;
+			historyEnd = -1;
+			this.offsets = offsets;
+			this.windowStart = windowStart;
+			this.window = window;
+			target = null;
+			point = null;
+			committed = false;
+		}
+
+		/**
+		 * Writes the save record, and the history first if it's being rebuilt.
+		 */
+		void run() {
+			if (offsets == null) {
+				point = source.writeSave(snapshot, length, historyEnd, snapshot.getIdCount());
+				return;
+			}
+			target = UndoHistoryFile.create(file);
+			long[] opened = null;
+			for (int i = 0; i < offsets.length; i++) {
+				UndoAction action;
+				if (i >= windowStart && i < windowStart + window.length) {
+					action = window[i - windowStart];
+				} else {
+					long offset = offsets[i];
+					if (offset == UNREAD) {
+						if (opened == null) {
+							opened = source.readOpenedHistory();
+						}
+						offset = opened[i];
+					}
+					action = source.read(offset);
+				}
+				offsets[i] = target.write(action, i);
+			}
+			point = target.writeSave(snapshot, length, target.getSize(), target.getIdCount());
+		}
+
+		/**
+		 * Points the sidecar at the save record, once the document has been written.
+		 */
+		void commit() {
+			if (target == null) {
+				source.commitSave(point);
+			} else {
+				target.commitSave(point);
+				target.moveIntoPlace();
+			}
+			committed = true;
+		}
+	}
+
+	/**
+	 * The document's rectangles, in order, with their bounds and names, as they were at a
+	 * position in the history. Rectangles are kept by reference, since actions refer to
+	 * them that way. Properties aren't kept, since no action changes them.
+	 */
+	private static class Checkpoint {
+		private final int position;
+		private final Rectangle[] rects;
+		// x, y, width and height for each rectangle.
+		private final double[] bounds;
+		private final String[] names;
+
+		public Checkpoint(int position, RectangleStore store) {
+			this.position = position;
+			int size = store.size();
+			rects = new Rectangle[size];
+			bounds = new double[size * 4];
+			names = new String[size];
+			int next = 0;
+			int slotCount = store.getSlotCount();
+			for (int slot = 0; slot < slotCount; slot++) {
+				var rect = store.getRectangleInSlot(slot);
+				if (rect == null) {
+					continue;
+				}
+				rects[next] = rect;
+				bounds[next * 4] = store.getX(slot);
+				bounds[next * 4 + 1] = store.getY(slot);
+				bounds[next * 4 + 2] = store.getWidth(slot);
+				bounds[next * 4 + 3] = store.getHeight(slot);
+				names[next] = store.getName(slot);
+				next += 1;
+			}
+			assert (next == size);
+		}
+
+		/**
+		 * Puts the document back the way it was, through the view so that the changes
+		 * are journaled and recorded. Rectangles that have to be added again go at the
+		 * end, as they do when a removal is undone.
+		 */
+		public void restore(UndoActionView view) {
+			var store = view.getParent().getRectangles();
+			var kept = new IdentityHashMap<Rectangle, Boolean>(rects.length * 2);
+			for (var rect : rects) {
+				kept.put(rect, true);
+			}
+			for (var rect : new ArrayList<>(store)) {
+				if (!kept.containsKey(rect)) {
+					view.removeRectangle(rect);
+				}
+			}
+			for (int i = 0; i < rects.length; i++) {
+				var rect = rects[i];
+				if (rect.store != store) {
+					view.addRectangle(rect);
+				}
+				double x = bounds[i * 4];
+				double y = bounds[i * 4 + 1];
+				double width = bounds[i * 4 + 2];
+				double height = bounds[i * 4 + 3];
+				if (!rect.hasBounds(x, y, width, height)) {
+					view.setBounds(rect, x, y, width, height);
+				}
+				if (!rect.getName().equals(names[i])) {
+					view.setName(rect, names[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return Roughly how many bytes a checkpoint of that many rectangles takes.
+		 */
+		public static long estimateSize(int rectangleCount) {
+			// The object and three arrays of references, doubles and references.
+			return 32 + 3 * 16 + rectangleCount * (4 + 32 + 4L);
+		}
+	}
 }
@@ -6,6 +6,9 @@ module main {
 	// Gson depends on java.sql.
 	requires java.sql;
 
+	// BinaryDocumentCodec releases file maps through sun.misc.Unsafe.
+	requires jdk.unsupported;
+
 	// Required for Gson's reflection framework.
 	exports main;
 
@@ -88,6 +88,26 @@ public class SWTResourceManager {
 		}
 		return color;
 	}
+	/**
+	 * Dispose of the cached {@link Color} with the given RGB value, if there is one.
+	 * 
+	 * @param rgb
+	 *            the {@link RGB} value of the color
+	 */
+	public static void disposeColor(RGB rgb) {
+		Color color = m_colorMap.remove(rgb);
+		if (color != null) {
+			color.dispose();
+		}
+	}
+	/**
+	 * Returns the number of cached {@link Color}'s.
+	 * 
+	 * @return the number of cached {@link Color}'s
+	 */
+	public static int getColorCount() {
+		return m_colorMap.size();
+	}
 	/**
 	 * Dispose of all the cached {@link Color}'s.
 	 */
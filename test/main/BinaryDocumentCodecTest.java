@@ -0,0 +1,139 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.google.gson.JsonParser;
+import actions.RenameRectangleAction;
+
+public class BinaryDocumentCodecTest {
+
+	@TempDir
+	public Path dir;
+
+	private static Document sample(boolean fixedPoint) {
+		var document = new Document(fixedPoint);
+		for (int i = 0; i < 5; i++) {
+			var rect = new Rectangle(0.1 * i + 0.0123, 0.2, 0.05, 0.3);
+			document.addRectangle(rect);
+			// Some names are shared, so the string table is too.
+			document.getUndoStack().push(new RenameRectangleAction(rect, i % 2 == 0 ? "even" : "odd " + i));
+		}
+		var properties = new PropertyMap();
+		properties.putNumber("number", 1.5);
+		properties.putBoolean("boolean", true);
+		properties.put("null", null);
+		properties.put("string", "even");
+		properties.put("json", new JsonParser().parse("{\"a\":[1,2]}"));
+		document.getRectangles().get(1).properties = properties;
+		var empty = new PropertyMap();
+		document.getRectangles().get(3).properties = empty;
+		return document;
+	}
+
+	private Path write(Document document) throws IOException {
+		var file = dir.resolve("document" + BinaryDocumentCodec.EXTENSION);
+		BinaryDocumentCodec.write(document, file);
+		return file;
+	}
+
+	private static void assertSameDocument(Document expected, Document actual) {
+		assertEquals(expected.isFixedPoint(), actual.isFixedPoint());
+		var expectedRects = expected.getRectangles();
+		var actualRects = actual.getRectangles();
+		assertEquals(expectedRects.size(), actualRects.size());
+		for (int i = 0; i < expectedRects.size(); i++) {
+			var want = expectedRects.get(i);
+			var got = actualRects.get(i);
+			assertEquals(want.getX(), got.getX());
+			assertEquals(want.getY(), got.getY());
+			assertEquals(want.getWidth(), got.getWidth());
+			assertEquals(want.getHeight(), got.getHeight());
+			assertEquals(want.getName(), got.getName());
+			if (want.properties == null) {
+				assertNull(got.properties);
+				continue;
+			}
+			assertEquals(want.properties.size(), got.properties.size());
+			want.properties.forEach((key, value) -> {
+				assertEquals(value, got.properties.get(key), key);
+				assertTrue(got.properties.containsKey(key), key);
+			});
+		}
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		var document = sample(false);
+		assertSameDocument(document, BinaryDocumentCodec.read(write(document)));
+	}
+
+	@Test
+	public void roundTripsFixedPoint() throws IOException {
+		var document = sample(true);
+		var read = BinaryDocumentCodec.read(write(document));
+		assertSameDocument(document, read);
+		assertEquals(0.012, read.getRectangles().get(0).getX());
+	}
+
+	@Test
+	public void roundTripsEmptyDocument() throws IOException {
+		var document = new Document();
+		assertSameDocument(document, BinaryDocumentCodec.read(write(document)));
+	}
+
+	@Test
+	public void rejectsTruncatedFiles() throws IOException {
+		var file = write(sample(false));
+		var bytes = Files.readAllBytes(file);
+		var truncated = dir.resolve("truncated" + BinaryDocumentCodec.EXTENSION);
+		for (int length = 0; length < bytes.length; length++) {
+			Files.write(truncated, Arrays.copyOf(bytes, length));
+			assertThrows(IOException.class, () -> BinaryDocumentCodec.read(truncated), "length " + length);
+		}
+	}
+
+	@Test
+	public void rejectsCorruptCountsAndIndices() throws IOException {
+		var bytes = Files.readAllBytes(write(sample(false)));
+		var header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int count = header.getInt(16);
+		int stringCount = header.getInt(20);
+		int position = 24;
+		for (int i = 0; i < stringCount; i++) {
+			position += 4 + header.getInt(position);
+		}
+		int columnsStart = (position + 7) & ~7;
+		int names = columnsStart + count * 4 * Double.BYTES;
+
+		// Rectangle count, string count, the first string's length, and a name's index.
+		assertCorrupt(bytes, 16, -1);
+		assertCorrupt(bytes, 16, Integer.MAX_VALUE);
+		assertCorrupt(bytes, 20, -1);
+		assertCorrupt(bytes, 20, Integer.MAX_VALUE);
+		assertCorrupt(bytes, 24, -1);
+		assertCorrupt(bytes, 24, Integer.MAX_VALUE);
+		assertCorrupt(bytes, names, stringCount);
+		assertCorrupt(bytes, names, -1);
+		// The first rectangle's property count.
+		assertCorrupt(bytes, names + count * Integer.BYTES, -2);
+		assertCorrupt(bytes, names + count * Integer.BYTES + Integer.BYTES, Integer.MAX_VALUE);
+	}
+
+	private void assertCorrupt(byte[] original, int offset, int value) throws IOException {
+		var bytes = original.clone();
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+		var file = dir.resolve("corrupt" + BinaryDocumentCodec.EXTENSION);
+		Files.write(file, bytes);
+		assertThrows(IOException.class, () -> BinaryDocumentCodec.read(file), "offset " + offset + " = " + value);
+	}
+}
@@ -0,0 +1,65 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import actions.ResizeRectangleAction;
+
+public class ProjectionCacheTest {
+
+	@Test
+	public void reorderDoesNotResurrectStaleEntries() {
+		var document = new Document();
+		for (int i = 0; i < 4; i++) {
+			document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+		}
+		var rect = new Rectangle(0.5, 0.5, 0.1, 0.1);
+		document.addRectangle(rect);
+		var last = document.getRectangles().size() - 1;
+
+		var projection = new ProjectionCache();
+		projection.setScale(1000, 1000);
+
+		// Project the rectangle from the first slot it moves into.
+		document.setPosition(rect, 0);
+		document.setPosition(rect, last);
+		assertEquals(500, projection.getX(projection.project(rect)));
+
+		// Move it to another slot, and resize it there the way the editor would see it.
+		document.setPosition(rect, 0);
+		document.getUndoStack().push(new ResizeRectangleAction(rect, 0.2, 0.5, 0.1, 0.1));
+		projection.invalidate(rect);
+
+		// Moving back into the old slot must not bring back the old entry.
+		document.setPosition(rect, last);
+		int index = projection.project(rect);
+		assertEquals(200, projection.getX(index));
+		assertEquals(500, projection.getY(index));
+	}
+
+	@Test
+	public void compactionDoesNotResurrectStaleEntries() {
+		var document = new Document();
+		var rects = new ArrayList<Rectangle>();
+		for (int i = 0; i < 300; i++) {
+			var rect = new Rectangle(0.001 * i, 0.1, 0.01, 0.01);
+			rects.add(rect);
+			document.addRectangle(rect);
+		}
+		var projection = new ProjectionCache();
+		projection.setScale(1000, 1000);
+		for (var rect : rects) {
+			projection.project(rect);
+		}
+
+		// Removing most of them compacts the store, so the survivors change slots.
+		document.removeRectangles(rects.subList(0, 250));
+		var survivor = rects.get(299);
+		document.getUndoStack().push(new ResizeRectangleAction(survivor, 0.9, 0.1, 0.01, 0.01));
+		projection.invalidate(survivor);
+		for (var rect : rects.subList(250, 300)) {
+			int index = projection.project(rect);
+			assertEquals((int) Math.round(rect.getX() * 1000), projection.getX(index));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.graphics.RGB;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TabFolder;
+import org.junit.jupiter.api.Test;
+
+public class ResourcePoolTest {
+
+	// The colors every Editor acquires.
+	private static final RGB[] EDITOR_COLORS = {
+		new RGB(255, 255, 255), new RGB(0, 0, 0), new RGB(150, 150, 150), new RGB(0, 120, 215)
+	};
+
+	/**
+	 * @return The display, or null if SWT can't open one here.
+	 */
+	private static Display openDisplay() {
+		try {
+			return Display.getDefault();
+		} catch (SWTError | LinkageError e) {
+			// No display server, or no native libraries for this platform.
+			return null;
+		}
+	}
+
+	private static void assertReferences(int[] expected, int extra) {
+		for (int i = 0; i < EDITOR_COLORS.length; i++) {
+			assertEquals(expected[i] + extra, ResourcePool.getReferenceCount(EDITOR_COLORS[i]), EDITOR_COLORS[i].toString());
+		}
+	}
+
+	@Test
+	public void closingEditorsReleasesTheirColors() {
+		var display = openDisplay();
+		assumeTrue(display != null, "SWT can't open a display");
+		var shell = new Shell(display);
+		try {
+			var tabs = new TabFolder(shell, SWT.NONE);
+			int liveColors = ResourcePool.getLiveColorCount();
+			var references = new int[EDITOR_COLORS.length];
+			for (int i = 0; i < EDITOR_COLORS.length; i++) {
+				references[i] = ResourcePool.getReferenceCount(EDITOR_COLORS[i]);
+			}
+
+			for (int i = 0; i < 20; i++) {
+				var first = new Editor(tabs, new Document());
+				var second = new Editor(tabs, new Document());
+				// Both editors share one of each color.
+				assertReferences(references, 2);
+				first.dispose();
+				assertReferences(references, 1);
+				second.dispose();
+				assertReferences(references, 0);
+				assertEquals(liveColors, ResourcePool.getLiveColorCount());
+			}
+		} finally {
+			shell.dispose();
+		}
+	}
+}
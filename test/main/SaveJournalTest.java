@@ -0,0 +1,159 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import actions.RenameRectangleAction;
+import actions.ResizeRectangleAction;
+
+public class SaveJournalTest {
+
+	@TempDir
+	public Path dir;
+
+	private static String describe(Document document) {
+		var ret = new ArrayList<String>();
+		for (var rect : document.getRectangles()) {
+			ret.add(rect.getName() + " " + rect.getX() + " " + rect.getY() + " " + rect.getWidth() + " " + rect.getHeight());
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Writes the whole document and starts journaling against the file.
+	 */
+	private Path fullSave(Document document) throws IOException {
+		var file = dir.resolve("document" + BinaryDocumentCodec.EXTENSION);
+		var journal = document.getJournal();
+		journal.beginRebase(file, true);
+		BinaryDocumentCodec.write(document, file);
+		journal.finishRebase(file);
+		return file;
+	}
+
+	private static Document sample() {
+		var document = new Document();
+		for (int i = 0; i < 5; i++) {
+			document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+		}
+		return document;
+	}
+
+	@Test
+	public void replaysAppendedChanges() throws IOException {
+		var document = sample();
+		var file = fullSave(document);
+		var journal = document.getJournal();
+		var rects = document.getRectangles();
+
+		document.addRectangle(new Rectangle(0.5, 0.5, 0.2, 0.2));
+		document.getUndoStack().push(new ResizeRectangleAction(rects.get(1), 0.7, 0.7, 0.1, 0.1));
+		document.getUndoStack().push(new RenameRectangleAction(rects.get(2), "renamed"));
+		document.removeRectangle(rects.get(0));
+		document.setPosition(rects.get(0), 3);
+		assertTrue(journal.canAppend(file));
+		journal.append(file, journal.takePending());
+		assertTrue(journal.hasEntries());
+
+		// More changes, including undoing some, in a second append.
+		document.getUndoStack().undo();
+		document.getUndoStack().undo();
+		journal.append(file, journal.takePending());
+
+		var read = BinaryDocumentCodec.read(file);
+		SaveJournal.replay(read, file, false);
+		assertEquals(describe(document), describe(read));
+	}
+
+	@Test
+	public void ignoresJournalOfAnotherVersionOfTheFile() throws IOException {
+		var document = sample();
+		var file = fullSave(document);
+		var journal = document.getJournal();
+		document.addRectangle(new Rectangle(0.5, 0.5, 0.2, 0.2));
+		journal.append(file, journal.takePending());
+
+		// The file is replaced without going through the journal.
+		var other = new Document();
+		other.addRectangle(new Rectangle(0.9, 0.9, 0.05, 0.05));
+		BinaryDocumentCodec.write(other, file);
+
+		var read = BinaryDocumentCodec.read(file);
+		SaveJournal.replay(read, file, false);
+		assertEquals(describe(other), describe(read));
+	}
+
+	@Test
+	public void stopsRecordingOnceTooBigToAppend() throws IOException {
+		var document = sample();
+		var file = fullSave(document);
+		var journal = document.getJournal();
+		var rect = document.getRectangles().get(0);
+		for (int i = 0; i < 2000; i++) {
+			document.getUndoStack().push(new ResizeRectangleAction(rect, 0.0001 * i, 0.1, 0.05, 0.05));
+		}
+		// Past the compaction size, the next save has to be a full one.
+		assertFalse(journal.isRecording());
+		assertFalse(journal.canAppend(file));
+		assertEquals("", journal.takePending());
+	}
+
+	@Test
+	public void closeFoldsJournalIntoFile() throws IOException {
+		DocumentManager.setIncrementalSaving(true);
+		try {
+			var document = DocumentManager.getCurrentDocument();
+			var file = dir.resolve("folded" + BinaryDocumentCodec.EXTENSION);
+			document.setFile(file);
+			document.setFileFormat(Document.FileFormat.Binary);
+			document.addRectangle(new Rectangle(0.1, 0.1, 0.1, 0.1));
+			DocumentManager.saveDocument(document);
+			document.addRectangle(new Rectangle(0.2, 0.2, 0.1, 0.1));
+			DocumentManager.saveDocument(document);
+			var saved = describe(document);
+			// Unsaved changes are dropped.
+			document.addRectangle(new Rectangle(0.3, 0.3, 0.1, 0.1));
+
+			assertTrue(DocumentManager.closeDocument(document));
+			assertFalse(Files.exists(SaveJournal.journalPath(file)));
+			assertEquals(saved, describe(BinaryDocumentCodec.read(file)));
+		} finally {
+			DocumentManager.setIncrementalSaving(false);
+		}
+	}
+
+	@Test
+	public void closeKeepsJournalWhenCompactingFails() throws IOException {
+		DocumentManager.setIncrementalSaving(true);
+		try {
+			var document = DocumentManager.getCurrentDocument();
+			var file = dir.resolve("closed" + BinaryDocumentCodec.EXTENSION);
+			document.setFile(file);
+			document.setFileFormat(Document.FileFormat.Binary);
+			document.addRectangle(new Rectangle(0.1, 0.1, 0.1, 0.1));
+			DocumentManager.saveDocument(document);
+			document.addRectangle(new Rectangle(0.2, 0.2, 0.1, 0.1));
+			DocumentManager.saveDocument(document);
+			assertTrue(document.getJournal().hasEntries());
+			var saved = describe(document);
+
+			// Nothing can be written where the compacted file would go.
+			Files.createDirectory(file.resolveSibling(file.getFileName() + ".compacting"));
+			assertTrue(DocumentManager.closeDocument(document));
+			assertFalse(DocumentManager.getDocuments().contains(document));
+			assertTrue(Files.exists(SaveJournal.journalPath(file)));
+
+			var read = BinaryDocumentCodec.read(file);
+			SaveJournal.replay(read, file, false);
+			assertEquals(saved, describe(read));
+		} finally {
+			DocumentManager.setIncrementalSaving(false);
+		}
+	}
+}
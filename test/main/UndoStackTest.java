@@ -0,0 +1,364 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import actions.RenameRectangleAction;
+import actions.ResizeRectangleAction;
+
+public class UndoStackTest {
+
+	@TempDir
+	public Path dir;
+
+	/**
+	 * @return The position in the history, and each rectangle in order.
+	 */
+	private static String describe(Document document) {
+		var ret = new ArrayList<String>();
+		for (var rect : document.getRectangles()) {
+			ret.add(rect.getName() + " " + rect.getX() + " " + rect.getY() + " " + rect.getWidth() + " " + rect.getHeight());
+		}
+		return document.getUndoStack().getPosition() + " " + ret;
+	}
+
+	private static Document sample() {
+		var document = new Document();
+		var stack = document.getUndoStack();
+		stack.setMergeWindowMillis(0);
+		stack.setMemoryBudget(0);
+		for (int i = 0; i < 5; i++) {
+			document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+		}
+		var rects = document.getRectangles();
+		for (int i = 0; i < 50; i++) {
+			stack.push(new ResizeRectangleAction(rects.get(i % 5), 0.01 * i, 0.2, 0.05, 0.05));
+		}
+		return document;
+	}
+
+	/**
+	 * Undoes a few entries and pushes new ones, as if the user carried on while a save
+	 * was being written.
+	 */
+	private static void edit(Document document) {
+		var stack = document.getUndoStack();
+		var rects = document.getRectangles();
+		for (int i = 0; i < 3; i++) {
+			stack.undo();
+		}
+		stack.push(new ResizeRectangleAction(rects.get(0), 0.5, 0.5, 0.1, 0.1));
+		stack.push(new RenameRectangleAction(rects.get(1), "edited " + stack.size()));
+	}
+
+	/**
+	 * Saves the document and its history in the steps saveDocumentAsync() takes, editing
+	 * it between each one.
+	 *
+	 * @return The document as it was saved.
+	 */
+	private static String save(Document document, Path file, boolean written) throws IOException {
+		var stack = document.getUndoStack();
+		var task = stack.prepareSave(document, file);
+		var saved = describe(document);
+		var rectangles = document.getRectangles().snapshot();
+		edit(document);
+		task.run();
+		edit(document);
+		if (written) {
+			BinaryDocumentCodec.write(rectangles, file);
+			task.commit();
+		}
+		edit(document);
+		stack.finishSave(task);
+		return saved;
+	}
+
+	/**
+	 * Checks that the whole history can be undone and redone.
+	 */
+	private static void assertReplays(Document document) {
+		var stack = document.getUndoStack();
+		var end = describe(document);
+		while (stack.canUndo()) {
+			stack.undo();
+		}
+		assertEquals(0, document.getRectangles().size());
+		while (stack.canRedo()) {
+			stack.redo();
+		}
+		assertEquals(end, describe(document));
+	}
+
+	private void assertReopens(Path file, String saved) throws IOException {
+		// Opening a sidecar drops what was written after the save, so open a copy rather
+		// than pull it out from under the document that's still using it.
+		var copy = dir.resolve("copy" + BinaryDocumentCodec.EXTENSION);
+		Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		Files.copy(UndoHistoryFile.historyPath(file), UndoHistoryFile.historyPath(copy), StandardCopyOption.REPLACE_EXISTING);
+		var reopened = BinaryDocumentCodec.read(copy);
+		reopened.getUndoStack().openHistory(reopened, copy);
+		assertEquals(saved, describe(reopened));
+		assertReplays(reopened);
+		reopened.getUndoStack().close();
+	}
+
+	@Test
+	public void historyIsSavedWhileEditing() throws IOException {
+		var document = sample();
+		var file = dir.resolve("document" + BinaryDocumentCodec.EXTENSION);
+
+		// The first save moves the history out of its temp file, and the second appends
+		// to the sidecar.
+		for (int i = 0; i < 2; i++) {
+			var saved = save(document, file, true);
+			assertReplays(document);
+			assertReopens(file, saved);
+		}
+		document.getUndoStack().close();
+	}
+
+	@Test
+	public void failedSaveKeepsHistory() throws IOException {
+		var document = sample();
+		var file = dir.resolve("document" + BinaryDocumentCodec.EXTENSION);
+		var saved = save(document, file, true);
+
+		// Enough truncated actions that the next save rebuilds the sidecar.
+		for (int i = 0; i < 40; i++) {
+			edit(document);
+		}
+		save(document, file, false);
+		assertFalse(Files.exists(dir.resolve(UndoHistoryFile.historyPath(file).getFileName() + ".new")));
+		assertReplays(document);
+		assertReopens(file, saved);
+		document.getUndoStack().close();
+	}
+
+	@Test
+	public void truncatedHistoryIsCompacted() {
+		var document = new Document();
+		var stack = document.getUndoStack();
+		stack.setMergeWindowMillis(0);
+		stack.setMemoryBudget(0);
+		for (int i = 0; i < 20000; i++) {
+			document.addRectangle(new Rectangle(0.1, 0.1, 0.1, 0.1));
+			document.addRectangle(new Rectangle(0.2, 0.2, 0.1, 0.1));
+			stack.undo();
+			stack.undo();
+		}
+		assertTrue(stack.getMemoryUsage() < 16 * 1024, "memory usage " + stack.getMemoryUsage());
+		assertTrue(stack.getHistoryFileSize() < 16 * 1024, "history file size " + stack.getHistoryFileSize());
+		stack.close();
+	}
+
+	@Test
+	public void compactionKeepsLiveHistory() {
+		var document = new Document();
+		var stack = document.getUndoStack();
+		stack.setMergeWindowMillis(0);
+		stack.setMemoryBudget(0);
+		for (int i = 0; i < 10; i++) {
+			document.addRectangle(new Rectangle(0.05 * i, 0.1, 0.1, 0.1));
+		}
+		for (int i = 0; i < 1000; i++) {
+			var rect = document.getRectangles().get(i % 10);
+			stack.push(new ResizeRectangleAction(rect, 0.9, 0.9, 0.05, 0.05));
+			stack.undo();
+		}
+		while (stack.canUndo()) {
+			stack.undo();
+		}
+		assertEquals(0, document.getRectangles().size());
+		while (stack.getPosition() < 10) {
+			stack.redo();
+		}
+		assertEquals(10, document.getRectangles().size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0.05 * i, document.getRectangles().get(i).getX());
+		}
+		stack.close();
+	}
+
+	@Test
+	public void resizesMergeInFixedPointMode() {
+		var document = new Document();
+		document.setFixedPoint(true);
+		var rect = new Rectangle(0.1, 0.1, 0.1, 0.1);
+		document.addRectangle(rect);
+		var stack = document.getUndoStack();
+		stack.setMergeWindowMillis(60_000);
+		// Drags produce bounds that aren't whole units, and are rounded when applied.
+		stack.push(new ResizeRectangleAction(rect, 0.12345, 0.1, 0.1, 0.1));
+		stack.push(new ResizeRectangleAction(rect, 0.15678, 0.1, 0.1, 0.1));
+		assertEquals(2, stack.size());
+		stack.undo();
+		assertEquals(0.1, rect.getX());
+	}
+
+	/**
+	 * Builds two documents with the same history, one to jump around and one to step.
+	 */
+	private static Document[] twins(long memoryBudget, Consumer<Document> script) {
+		var ret = new Document[2];
+		for (int i = 0; i < 2; i++) {
+			ret[i] = new Document();
+			var stack = ret[i].getUndoStack();
+			stack.setMergeWindowMillis(0);
+			stack.setMemoryBudget(memoryBudget);
+			script.accept(ret[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Pushes resizes of one rectangle, each to somewhere new.
+	 */
+	private static void resize(Document document, int index, int count) {
+		var stack = document.getUndoStack();
+		var rect = document.getRectangles().get(index);
+		for (int i = 0; i < count; i++) {
+			double offset = (stack.size() % 97) * 0.001;
+			stack.push(new ResizeRectangleAction(rect, 0.1 + offset, 0.2 + offset, 0.05 + offset, 0.05));
+		}
+	}
+
+	/**
+	 * Checks that jumping to a position leaves the document as stepping there with
+	 * undo() and redo() does, and tells the listeners once.
+	 */
+	private static void assertJumpMatchesStepping(Document[] twins, int position) {
+		var events = new ArrayList<UndoEvent>();
+		var jumped = twins[0].getUndoStack();
+		var listener = jumped.addListener(events::add);
+		jumped.jumpTo(position);
+		jumped.removeListener(listener);
+
+		var stepped = twins[1].getUndoStack();
+		while (stepped.getPosition() > position) {
+			stepped.undo();
+		}
+		while (stepped.getPosition() < position) {
+			stepped.redo();
+		}
+		assertEquals(describe(twins[1]), describe(twins[0]), "at " + position);
+		assertEquals(1, events.size(), "events at " + position);
+	}
+
+	@Test
+	public void jumpRestoresRemovedRectanglesAndDropsAddedOnes() {
+		var twins = twins(UndoStack.DEFAULT_MEMORY_BUDGET, document-> {
+			for (int i = 0; i < 3; i++) {
+				document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+			}
+			resize(document, 0, 300);
+			document.removeRectangle(document.getRectangles().get(1));
+			document.addRectangle(new Rectangle(0.5, 0.5, 0.1, 0.1));
+			resize(document, 0, 300);
+		});
+		int end = twins[0].getUndoStack().size();
+		assertTrue(twins[0].getUndoStack().getCheckpointCount() > 0);
+		// Most of these are much closer to a checkpoint than to where they start from.
+		for (int position : new int[] {
+			260, end, 0, 300, 310, 600, 5, end
+		}) {
+			assertJumpMatchesStepping(twins, position);
+		}
+	}
+
+	@Test
+	public void jumpFixesBoundsAndNames() {
+		var twins = twins(UndoStack.DEFAULT_MEMORY_BUDGET, document-> {
+			for (int i = 0; i < 3; i++) {
+				document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+			}
+			var stack = document.getUndoStack();
+			var rects = document.getRectangles();
+			for (int i = 0; i < 100; i++) {
+				resize(document, i % 3, 5);
+				stack.push(new RenameRectangleAction(rects.get(i % 3), "name " + stack.size()));
+			}
+		});
+		int end = twins[0].getUndoStack().size();
+		for (int position : new int[] {
+			257, end, 3, 515, 100, end - 1, 0
+		}) {
+			assertJumpMatchesStepping(twins, position);
+		}
+	}
+
+	@Test
+	public void jumpRefetchesSpilledWindow() {
+		// Small enough that most of the history is spilled, big enough for checkpoints.
+		var twins = twins(4000, document-> {
+			for (int i = 0; i < 3; i++) {
+				document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+			}
+			resize(document, 1, 400);
+			document.removeRectangle(document.getRectangles().get(0));
+			resize(document, 0, 400);
+		});
+		assertTrue(twins[0].getUndoStack().getSpilledCount() > 0);
+		assertJumpMatchesStepping(twins, 270);
+		// The next push truncates the history after the window.
+		for (var document : twins) {
+			resize(document, 2, 1);
+			document.getUndoStack().undo();
+			document.getUndoStack().redo();
+		}
+		assertEquals(describe(twins[1]), describe(twins[0]));
+		int end = twins[0].getUndoStack().size();
+		for (int position : new int[] {
+			0, end, 2, 265, end
+		}) {
+			assertJumpMatchesStepping(twins, position);
+		}
+		for (var document : twins) {
+			document.getUndoStack().close();
+		}
+	}
+
+	@Test
+	public void checkpointsAreThinnedAndTruncated() {
+		// Room for two checkpoints of three rectangles.
+		var twins = twins(2000, document-> {
+			for (int i = 0; i < 3; i++) {
+				document.addRectangle(new Rectangle(0.1 * i, 0.1, 0.05, 0.05));
+			}
+			resize(document, 2, 2000);
+		});
+		var stack = twins[0].getUndoStack();
+		int count = stack.getCheckpointCount();
+		assertTrue(count > 0 && count <= 2, "checkpoint count " + count);
+		int end = stack.size();
+		for (int position : new int[] {
+			1030, 10, end, 1540
+		}) {
+			assertJumpMatchesStepping(twins, position);
+		}
+
+		// Pushing from before every checkpoint drops them all, so none of them can
+		// restore entries that aren't in the history any more.
+		assertJumpMatchesStepping(twins, 100);
+		for (var document : twins) {
+			resize(document, 1, 1);
+		}
+		assertEquals(0, stack.getCheckpointCount());
+		for (int position : new int[] {
+			0, stack.size(), 50
+		}) {
+			assertJumpMatchesStepping(twins, position);
+		}
+		for (var document : twins) {
+			document.getUndoStack().close();
+		}
+	}
+}